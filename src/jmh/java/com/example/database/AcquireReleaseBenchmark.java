@@ -0,0 +1,92 @@
+package com.example.database;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput and latency percentiles of getConnection() followed
+ * by releaseConnection() on a shared pool, at 1 to 256 threads and with pools
+ * smaller and larger than the number of threads. Connections come from the
+ * StubDriver, so the results show the overhead of the pool alone. Compares
+ * a single queue of idle connections with 8 stripes, which needs as many
+ * cores to show a difference.
+ *
+ * Run with mvn -Pjmh test-compile exec:exec -Djmh.args=AcquireRelease, add
+ * -p poolSize=8 to the arguments to run a single pool size.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AcquireReleaseBenchmark {
+
+    @Param({"8", "32", "128"})
+    public int poolSize;
+    @Param({"1", "8"})
+    public int stripes;
+    private ConnectionPoolFactory cpf;
+
+    @Setup
+    public void setUp() throws SQLException {
+        cpf = new ConnectionPoolFactory(StubDriver.class.getName(),
+                StubDriver.URL_PREFIX + "benchmark", "sa", "", poolSize, false);
+        //Threads beyond the pool size wait for a connection instead of
+        //failing
+        cpf.setConnectionTimeout(TimeUnit.MINUTES.toMillis(1));
+        cpf.setStripes(stripes);
+    }
+
+    @TearDown
+    public void tearDown() {
+        cpf.shutdown();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void threads1() throws SQLException {
+        acquireRelease();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void threads4() throws SQLException {
+        acquireRelease();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void threads16() throws SQLException {
+        acquireRelease();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void threads64() throws SQLException {
+        acquireRelease();
+    }
+
+    @Benchmark
+    @Threads(256)
+    public void threads256() throws SQLException {
+        acquireRelease();
+    }
+
+    private void acquireRelease() throws SQLException {
+        cpf.releaseConnection(cpf.getConnection());
+    }
+}
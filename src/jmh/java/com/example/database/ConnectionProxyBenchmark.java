@@ -0,0 +1,126 @@
+package com.example.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the cost of a call through the connection handed out by the pool
+ * with a call through the java.lang.reflect.Proxy the pool used before, and
+ * with a call on the database connection itself.
+ *
+ * Run with mvn -Pjmh test-compile exec:exec -Djmh.args=ConnectionProxy
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConnectionProxyBenchmark {
+
+    private ConnectionPoolFactory cpf;
+    private Connection raw;
+    private Connection reflective;
+    private Connection pooled;
+
+    @Setup
+    public void setUp() throws SQLException {
+        cpf = new ConnectionPoolFactory("org.hsqldb.jdbcDriver",
+                "jdbc:hsqldb:mem:benchmark", "sa", "", 1, false);
+        pooled = cpf.getConnection();
+        raw = DriverManager.getConnection("jdbc:hsqldb:mem:benchmark", "sa",
+                "");
+        reflective = (Connection) Proxy.newProxyInstance(
+                raw.getClass().getClassLoader(),
+                new Class[]{Connection.class}, new ReflectiveHandler(raw));
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        cpf.releaseConnection(pooled);
+        cpf.shutdown();
+        raw.close();
+    }
+
+    @Benchmark
+    public boolean raw() throws SQLException {
+        return raw.getAutoCommit();
+    }
+
+    @Benchmark
+    public boolean reflectiveProxy() throws SQLException {
+        return reflective.getAutoCommit();
+    }
+
+    @Benchmark
+    public boolean pooled() throws SQLException {
+        return pooled.getAutoCommit();
+    }
+
+    @Benchmark
+    public boolean pooledIsClosed() throws SQLException {
+        return pooled.isClosed();
+    }
+
+    @Benchmark
+    public boolean reflectiveProxyIsClosed() throws SQLException {
+        return reflective.isClosed();
+    }
+
+    /**
+     * The invocation handler the pool used to wrap connections with.
+     */
+    private static final class ReflectiveHandler implements InvocationHandler {
+
+        private final Connection c;
+        private volatile boolean closed = false;
+
+        ReflectiveHandler(Connection c) {
+            this.c = c;
+        }
+
+        @Override
+        public Object invoke(Object o, Method method, Object[] args)
+                throws Throwable {
+            if (method.getName().equals("equals")) {
+                return this.equals(o);
+            }
+            if (method.getName().equals("hashCode")) {
+                return this.hashCode();
+            }
+            if (method.getName().equals("isClosed")) {
+                return closed;
+            }
+            try {
+                if (!closed) {
+                    if (method.getName().equals("close")) {
+                        closed = true;
+                        return null;
+                    } else {
+                        return method.invoke(c, args);
+                    }
+                } else {
+                    throw new Throwable(new SQLException("closed"));
+                }
+            } catch (Throwable t) {
+                throw t.getCause();
+            }
+        }
+    }
+}
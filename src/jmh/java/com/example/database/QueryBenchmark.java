@@ -0,0 +1,105 @@
+package com.example.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs a query on a pooled connection against a simulated database with
+ * exponentially distributed query latencies, occasional latency spikes and
+ * connections breaking at random. Shows the latency callers see when the
+ * pool is saturated and broken connections have to be replaced. With
+ * breaking connections, every borrow is validated with a round trip.
+ *
+ * Run with mvn -Pjmh test-compile exec:exec -Djmh.args=Query
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+
+    @Param({"8", "32"})
+    public int poolSize;
+    //Mean query latency in microseconds
+    @Param({"200"})
+    public long queryLatency;
+    //Probability of a query to break its connection
+    @Param({"0", "0.001"})
+    public double connectionDeathRate;
+    private StubDriver.Database db;
+    private ConnectionPoolFactory cpf;
+
+    @Setup
+    public void setUp() throws SQLException {
+        db = StubDriver.database("QueryBenchmark");
+        db.reset();
+        db.setConnectLatency(StubDriver.Latency.uniform(2, 10,
+                TimeUnit.MILLISECONDS));
+        db.setQueryLatency(StubDriver.Latency.withSpikes(
+                StubDriver.Latency.exponential(queryLatency,
+                        TimeUnit.MICROSECONDS),
+                0.001, StubDriver.Latency.fixed(20, TimeUnit.MILLISECONDS)));
+        db.setConnectionDeathRate(connectionDeathRate);
+        cpf = new ConnectionPoolFactory(StubDriver.class.getName(),
+                StubDriver.URL_PREFIX + "QueryBenchmark", "sa", "", poolSize,
+                false);
+        cpf.setConnectionTimeout(TimeUnit.MINUTES.toMillis(1));
+        if (connectionDeathRate > 0) {
+            //Retire broken connections before they are handed out again
+            cpf.setValidationInterval(0);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        cpf.shutdown();
+        db.reset();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean threads16() throws SQLException {
+        return query();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public boolean threads64() throws SQLException {
+        return query();
+    }
+
+    //Returns false if the connection broke
+    private boolean query() throws SQLException {
+        Connection c = cpf.getConnection();
+        try {
+            Statement s = c.createStatement();
+            s.execute("SELECT 1");
+            s.close();
+            return true;
+        } catch (SQLException e) {
+            if (!StubDriver.CONNECTION_FAILURE.equals(e.getSQLState())) {
+                throw e;
+            }
+            return false;
+        } finally {
+            cpf.releaseConnection(c);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.database;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The quota of the callers sharing a tag. Limits the connections the tag may
+ * hold at the same time to maxInUse, callers beyond it wait for one of the
+ * tag to be released. Up to guaranteed connections of the tag are kept free
+ * from other callers by the admission of the pool.
+ *
+ * A quota takes permits of its own and counts with its own counters, so
+ * callers of different tags never contend with each other. The guarantee is
+ * read without a lock.
+ */
+final class Bulkhead {
+
+    final String tag;
+    private final Permits permits;
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+    private final LongAdder rejections = new LongAdder();
+    private volatile int maxInUse;
+    private volatile int guaranteed;
+
+    /**
+     * Constructor
+     *
+     * @param tag String. The tag of the callers.
+     * @param guaranteed int. Connections kept for the tag.
+     * @param maxInUse int. Connections the tag may hold, 0 for no limit.
+     */
+    Bulkhead(String tag, int guaranteed, int maxInUse) {
+        this.tag = tag;
+        this.permits = new Permits(permits(maxInUse));
+        set(guaranteed, maxInUse);
+    }
+
+    /**
+     * Changes the quota. Callers holding more connections than the new
+     * maximum keep them until they release them.
+     *
+     * @param guaranteed int. Connections kept for the tag.
+     * @param maxInUse int. Connections the tag may hold, 0 for no limit.
+     */
+    void set(int guaranteed, int maxInUse) {
+        this.maxInUse = Math.max(0, maxInUse);
+        this.guaranteed = Math.max(0, maxInUse > 0
+                ? Math.min(guaranteed, maxInUse) : guaranteed);
+        permits.resize(permits(this.maxInUse));
+    }
+
+    private static int permits(int maxInUse) {
+        return maxInUse > 0 ? maxInUse : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Takes a connection of the quota, waiting for one to be released if the
+     * tag holds maxInUse connections.
+     *
+     * @param timeout long. Time to wait in nanoseconds, 0 to fail
+     * immediately.
+     * @return int The connections the tag holds including this one, or 0 if
+     * timed out.
+     * @throws InterruptedException
+     */
+    int acquire(long timeout) throws InterruptedException {
+        if (!permits.tryAcquire() && (timeout <= 0
+                || !permits.tryAcquire(timeout, TimeUnit.NANOSECONDS))) {
+            rejections.increment();
+            return 0;
+        }
+        int n = inUse.incrementAndGet();
+        int p;
+        while (n > (p = peak.get()) && !peak.compareAndSet(p, n)) {
+            //Retry
+        }
+        return n;
+    }
+
+    /**
+     * Gives back a connection of the quota.
+     */
+    void release() {
+        inUse.decrementAndGet();
+        permits.release();
+    }
+
+    /**
+     * Returns the guaranteed connections the tag does not use, which the
+     * pool keeps from other callers.
+     *
+     * @return int
+     */
+    int unused() {
+        return Math.max(0, guaranteed - inUse.get());
+    }
+
+    int inUse() {
+        return inUse.get();
+    }
+
+    /**
+     * Returns the highest number of connections the tag held at the same
+     * time.
+     *
+     * @return int
+     */
+    int peak() {
+        return peak.get();
+    }
+
+    long rejections() {
+        return rejections.sum();
+    }
+
+    int getMaxInUse() {
+        return maxInUse;
+    }
+
+    int getGuaranteed() {
+        return guaranteed;
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.database;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops connecting to a database which keeps refusing connections. After a
+ * number of consecutive failed connects the breaker opens and connects fail
+ * fast for a backoff period. Then a single probe connect is let through: the
+ * breaker closes if it succeeds and opens again for twice as long if it
+ * fails, up to a maximum. Each backoff is shortened by up to half at random,
+ * so that pools which failed together do not probe together.
+ *
+ * Checking a closed breaker costs a volatile read. Failures and state
+ * changes are rare and synchronized, they are logged after the lock is
+ * released so that connecting threads do not wait for the logger.
+ */
+final class CircuitBreaker {
+
+    static final int CLOSED = 0;
+    static final int OPEN = 1;
+    static final int HALF_OPEN = 2;
+    private static final Logger logger =
+            LoggerFactory.getLogger(CircuitBreaker.class);
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+    private final AtomicInteger failures = new AtomicInteger();
+    private final LongAdder rejections = new LongAdder();
+    private volatile int failureThreshold;
+    private volatile long initialBackoff;
+    private volatile long maxBackoff;
+    //The last backoff and when it ends, in terms of System.nanoTime()
+    private long backoff;
+    private volatile long openUntil;
+
+    /**
+     * Constructor
+     *
+     * @param failureThreshold int. Consecutive failures which open the
+     * breaker, 0 to never open it.
+     * @param initialBackoff long. First backoff in milliseconds.
+     * @param maxBackoff long. Maximum backoff in milliseconds.
+     */
+    CircuitBreaker(int failureThreshold, long initialBackoff, long maxBackoff) {
+        setFailureThreshold(failureThreshold);
+        setInitialBackoff(initialBackoff);
+        setMaxBackoff(maxBackoff);
+    }
+
+    /**
+     * Asks to connect. Lets the probe connect through once the backoff has
+     * passed.
+     *
+     * @return boolean False if the connect must fail fast.
+     */
+    boolean tryAcquire() {
+        int s = state.get();
+        if (s == CLOSED || (s == OPEN && System.nanoTime() - openUntil >= 0
+                && state.compareAndSet(OPEN, HALF_OPEN))) {
+            return true;
+        }
+        rejections.increment();
+        return false;
+    }
+
+    /**
+     * Reports a successful connect, closing the breaker.
+     */
+    void success() {
+        if (failures.get() != 0) {
+            failures.set(0);
+        }
+        if (state.get() != CLOSED) {
+            boolean closed;
+            synchronized (this) {
+                closed = state.getAndSet(CLOSED) != CLOSED;
+            }
+            if (closed) {
+                logger.info("Connected again, closing circuit breaker");
+            }
+        }
+    }
+
+    /**
+     * Reports a failed connect. Opens the breaker after failureThreshold
+     * consecutive failures, or again if the probe failed.
+     *
+     * @return int The number of consecutive failures.
+     */
+    int failure() {
+        int n;
+        long opened = -1;
+        synchronized (this) {
+            n = failures.incrementAndGet();
+            int s = state.get();
+            if (s == HALF_OPEN) {
+                opened = open(Math.min(backoff * 2, maxBackoff));
+            } else if (s == CLOSED && failureThreshold > 0
+                    && n >= failureThreshold) {
+                opened = open(initialBackoff);
+            }
+        }
+        if (opened >= 0) {
+            logger.warn(n + " connects failed in a row, failing connects"
+                    + " fast for " + TimeUnit.NANOSECONDS.toMillis(opened)
+                    + " ms");
+        }
+        return n;
+    }
+
+    /**
+     * Opens the breaker for the given backoff, less a random jitter. The
+     * caller holds the lock.
+     *
+     * @param backoff long. The backoff in nanoseconds.
+     * @return long The backoff after the jitter, in nanoseconds.
+     */
+    private long open(long backoff) {
+        this.backoff = Math.max(1, backoff);
+        long jittered = this.backoff
+                - (long) (ThreadLocalRandom.current().nextDouble()
+                * this.backoff / 2);
+        openUntil = System.nanoTime() + jittered;
+        state.set(OPEN);
+        return jittered;
+    }
+
+    /**
+     * Returns the state of the breaker.
+     *
+     * @return int CLOSED, OPEN or HALF_OPEN.
+     */
+    int state() {
+        return state.get();
+    }
+
+    /**
+     * Returns the number of connects failed fast.
+     *
+     * @return long
+     */
+    long rejections() {
+        return rejections.sum();
+    }
+
+    int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = Math.max(0, failureThreshold);
+    }
+
+    long getInitialBackoff() {
+        return TimeUnit.NANOSECONDS.toMillis(initialBackoff);
+    }
+
+    void setInitialBackoff(long initialBackoff) {
+        this.initialBackoff = TimeUnit.MILLISECONDS.toNanos(
+                Math.max(1, initialBackoff));
+    }
+
+    long getMaxBackoff() {
+        return TimeUnit.NANOSECONDS.toMillis(maxBackoff);
+    }
+
+    void setMaxBackoff(long maxBackoff) {
+        this.maxBackoff = TimeUnit.MILLISECONDS.toNanos(
+                Math.max(1, maxBackoff));
+    }
+}
@@ -0,0 +1,636 @@
+package com.example.database;
+
+import static com.example.database.PoolEntry.STATE_FREE;
+import static com.example.database.PoolEntry.STATE_IN_USE;
+import static com.example.database.PoolEntry.STATE_REMOVED;
+import static com.example.database.PoolEntry.STATE_RESERVED;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
+
+/**
+ * A lock-free container of pool entries.
+ *
+ * All entries are kept in a copy-on-write list which only changes when a
+ * connection is added or removed. Free entries are additionally offered to a
+ * non-blocking queue, so borrowing and returning an entry is a poll or an
+ * offer plus a compare-and-set on the state of the entry. Neither takes a
+ * lock or scans a list.
+ *
+ * Each thread also remembers the entries it returned last. A borrowing thread
+ * first tries to reclaim one of those, so a thread which takes and gives back
+ * connections in quick succession mostly touches its own entries and not the
+ * shared queue. The entries stay in the shared queue as well, other threads
+ * may steal them when this thread does not come back for them. Virtual
+ * threads skip this, they are usually started per task and would only fill
+ * lists which are never used again.
+ *
+ * With more than one stripe, free entries are spread over several queues.
+ * A thread offers and polls the queue its thread id hashes to and only
+ * steals from the other queues when its own is empty, so that threads on
+ * different cores do not all update the head and tail of one queue. Stripes
+ * can be added at runtime but are never dropped, a reduced stripe count only
+ * changes where entries are offered, and stealing still drains every queue.
+ *
+ * An entry may be left in the queue after somebody else took it; such stale
+ * entries are skipped when their state does not match. The queued flag of the
+ * entry keeps it from being queued twice, so an entry reclaimed by its thread
+ * over and over is only queued once.
+ *
+ * Threads which find the bag empty may queue up as waiters. A returned entry
+ * is handed directly to the first waiter without ever becoming free, and
+ * only that waiter is woken up. A waiter checks for free entries once more
+ * after queueing and a returning thread checks for waiters once more after
+ * freeing its entry, so no hand-off is missed.
+ *
+ * Waiters queue up by rank, one queue per rank, rank 0 being served first.
+ * A returned entry goes to the first waiter of the lowest rank, unless the
+ * first waiter of a higher rank has been queued for longer than the aging
+ * time, so that waiters of higher ranks are not starved. An admission
+ * supplier may hold entries back from higher ranks; those waiters stay
+ * queued until they are admitted or time out.
+ *
+ * No monitor is ever held; waiting threads are parked, so carrier threads of
+ * virtual threads are not pinned.
+ */
+final class ConnectionBag {
+
+    //Number of returned entries remembered per thread
+    private static final int MAX_THREAD_ENTRIES = 8;
+    static final int MAX_STRIPES = 64;
+    private final List<PoolEntry> entries =
+            new CopyOnWriteArrayList<PoolEntry>();
+    //The stripes of free entries, a power of two of them
+    private volatile ConcurrentLinkedQueue<PoolEntry>[] freeEntries =
+            newQueues(1, null);
+    //Selects the stripe of a thread, stripes - 1
+    private volatile int stripeMask = 0;
+    //Waiters by rank
+    private final ConcurrentLinkedQueue<Waiter>[] waiters;
+    //Returns the highest rank handed entries, null for all
+    private volatile IntSupplier admission = null;
+    //Time after which a waiter is served before higher priorities, in
+    //nanoseconds, 0 to never
+    private volatile long agingTime = 0;
+    //Number of queued waiters, the queues have no constant time size()
+    private final LongAdder waiting = new LongAdder();
+    //Thread.isVirtual() on Java 21 and later, null before
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+    private final ThreadLocal<List<PoolEntry>> threadEntries =
+            new ThreadLocal<List<PoolEntry>>() {
+
+                @Override
+                protected List<PoolEntry> initialValue() {
+                    return new ArrayList<PoolEntry>(MAX_THREAD_ENTRIES);
+                }
+            };
+
+    /**
+     * Constructor
+     *
+     * @param ranks int. The number of ranks of waiters.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ConnectionBag(int ranks) {
+        waiters = new ConcurrentLinkedQueue[Math.max(1, ranks)];
+        for (int i = 0; i < waiters.length; i++) {
+            waiters[i] = new ConcurrentLinkedQueue<Waiter>();
+        }
+    }
+
+    /**
+     * Borrows a free entry from this bag.
+     *
+     * @return PoolEntry A free entry now in use, or null if there is none.
+     */
+    PoolEntry borrow() {
+        //Try to reclaim the entries returned last by this thread
+        List<PoolEntry> list = threadEntries();
+        if (list != null) {
+            for (int i = list.size() - 1; i >= 0; i--) {
+                PoolEntry e = list.remove(i);
+                if (e.compareAndSet(STATE_FREE, STATE_IN_USE)) {
+                    return e;
+                }
+            }
+        }
+        //Fall back to the shared queue
+        return poll();
+    }
+
+    /**
+     * Returns an entry in use to this bag. The entry is handed to a waiter if
+     * there is one, otherwise it becomes free.
+     *
+     * @param e PoolEntry
+     * @return boolean False if the entry was not in use.
+     */
+    boolean requite(PoolEntry e) {
+        if (e.getState() != STATE_IN_USE) {
+            return false;
+        }
+        if (hasWaiters() && handOff(e, admitted())) {
+            return true;
+        }
+        if (!e.compareAndSet(STATE_IN_USE, STATE_FREE)) {
+            return false;
+        }
+        List<PoolEntry> list = threadEntries();
+        if (list != null && list.size() < MAX_THREAD_ENTRIES) {
+            list.add(e);
+        }
+        offer(e);
+        if (hasWaiters()) {
+            handOffFree();
+        }
+        return true;
+    }
+
+    /**
+     * Queues the calling thread as a waiter. The caller must look for a free
+     * entry once more afterwards and either withdraw or await the waiter.
+     *
+     * @param rank int. Waiters of lower ranks are served first.
+     * @return Waiter
+     */
+    Waiter enqueue(int rank) {
+        return enqueue(new Waiter(Thread.currentThread(), rank));
+    }
+
+    /**
+     * Queues a waiter.
+     *
+     * @param w Waiter
+     * @return Waiter The given waiter.
+     */
+    Waiter enqueue(Waiter w) {
+        waiting.increment();
+        waiters[w.rank].offer(w);
+        return w;
+    }
+
+    /**
+     * Parks the calling thread until the waiter is served or the deadline
+     * passes.
+     *
+     * @param w Waiter. A waiter queued by the calling thread.
+     * @param deadline long. The deadline in terms of System.nanoTime().
+     * @return PoolEntry The entry handed over, now in use by the caller; or
+     * null if timed out or woken up without an entry.
+     * @throws InterruptedException if interrupted before being served.
+     */
+    PoolEntry await(Waiter w, long deadline) throws InterruptedException {
+        while (w.state == Waiter.WAITING) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                if (cancel(w)) {
+                    throw new InterruptedException();
+                }
+                //Served meanwhile, keep the interrupt for the caller
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return cancel(w) ? null : w.entry;
+    }
+
+    /**
+     * Withdraws a waiter which is no longer needed. An entry handed to it
+     * meanwhile is passed on, and so is a wake-up without an entry, which
+     * another waiter may need to create a connection.
+     *
+     * @param w Waiter
+     */
+    void withdraw(Waiter w) {
+        if (!cancel(w)) {
+            if (w.entry != null) {
+                requite(w.entry);
+            } else {
+                signal();
+            }
+        }
+    }
+
+    /**
+     * Wakes up one waiter without an entry, e.g. when a connection was
+     * removed and another may be created instead.
+     */
+    void signal() {
+        if (hasWaiters()) {
+            handOff(null, waiters.length - 1);
+        }
+    }
+
+    /**
+     * Wakes up all waiters without an entry. Waiters which queue up again
+     * meanwhile, e.g. asynchronous requests retrying on the calling thread,
+     * are not woken up twice.
+     */
+    void signalAll() {
+        int n = waiting();
+        while (n-- > 0 && handOff(null, waiters.length - 1)) {
+            //Next waiter
+        }
+    }
+
+    /**
+     * Returns whether threads are waiting for an entry.
+     *
+     * @return boolean
+     */
+    boolean hasWaiters() {
+        for (ConcurrentLinkedQueue<Waiter> queue : waiters) {
+            if (!queue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of queued waiters.
+     *
+     * @return int
+     */
+    int waiting() {
+        return (int) Math.max(0, waiting.sum());
+    }
+
+    /**
+     * Adds a new entry to this bag. The entry stays with the caller in its
+     * current state; free entries are queued for borrowing.
+     *
+     * @param e PoolEntry
+     */
+    void add(PoolEntry e) {
+        entries.add(e);
+        if (e.getState() == STATE_FREE) {
+            offer(e);
+        }
+    }
+
+    /**
+     * Removes an entry in use or reserved by the caller from this bag.
+     *
+     * @param e PoolEntry
+     * @return boolean False if the entry was neither in use nor reserved.
+     */
+    boolean remove(PoolEntry e) {
+        if (!e.compareAndSet(STATE_IN_USE, STATE_REMOVED)
+                && !e.compareAndSet(STATE_RESERVED, STATE_REMOVED)) {
+            return false;
+        }
+        entries.remove(e);
+        return true;
+    }
+
+    /**
+     * Reserves a free entry, taking it out of circulation without borrowing
+     * it, e.g. for maintenance.
+     *
+     * @param e PoolEntry
+     * @return boolean False if the entry was not free.
+     */
+    boolean reserve(PoolEntry e) {
+        return e.compareAndSet(STATE_FREE, STATE_RESERVED);
+    }
+
+    /**
+     * Makes a reserved entry free again.
+     *
+     * @param e PoolEntry
+     */
+    void unreserve(PoolEntry e) {
+        if (e.compareAndSet(STATE_RESERVED, STATE_FREE)) {
+            offer(e);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the entries in the given state.
+     *
+     * @param state int
+     * @return List<PoolEntry>
+     */
+    List<PoolEntry> values(int state) {
+        List<PoolEntry> list = new ArrayList<PoolEntry>();
+        for (PoolEntry e : entries) {
+            if (e.getState() == state) {
+                list.add(e);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns a snapshot of all entries.
+     *
+     * @return List<PoolEntry>
+     */
+    List<PoolEntry> values() {
+        return new ArrayList<PoolEntry>(entries);
+    }
+
+    /**
+     * Returns the number of entries in the given state. Scans the bag, so it
+     * should be kept off the hot path.
+     *
+     * @param state int
+     * @return int
+     */
+    int count(int state) {
+        int n = 0;
+        for (PoolEntry e : entries) {
+            if (e.getState() == state) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Sets the admission of waiters to returned entries. Waiters admitted by
+     * the change are not woken up, see signalAll().
+     *
+     * @param admission IntSupplier. Returns the highest rank which may be
+     * handed an entry; null to hand entries to all.
+     */
+    void setAdmission(IntSupplier admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * Sets the time after which a waiter is served before waiters of lower
+     * ranks.
+     *
+     * @param agingTime long. Time in nanoseconds, 0 to serve strictly by
+     * rank.
+     */
+    void setAgingTime(long agingTime) {
+        this.agingTime = Math.max(0, agingTime);
+    }
+
+    long getAgingTime() {
+        return agingTime;
+    }
+
+    /**
+     * Sets the number of stripes of free entries.
+     *
+     * @param stripes int. Rounded up to a power of two, up to MAX_STRIPES.
+     */
+    synchronized void setStripes(int stripes) {
+        int n = Math.max(1, Math.min(MAX_STRIPES, stripes));
+        n = Integer.highestOneBit(n) == n ? n : Integer.highestOneBit(n) << 1;
+        if (n > freeEntries.length) {
+            //Keep the existing queues and the entries in them
+            freeEntries = newQueues(n, freeEntries);
+        }
+        stripeMask = n - 1;
+    }
+
+    /**
+     * Returns the number of stripes entries are offered to.
+     *
+     * @return int
+     */
+    int stripes() {
+        return stripeMask + 1;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ConcurrentLinkedQueue<PoolEntry>[] newQueues(int n,
+            ConcurrentLinkedQueue<PoolEntry>[] existing) {
+        ConcurrentLinkedQueue<PoolEntry>[] queues = existing == null
+                ? new ConcurrentLinkedQueue[n] : Arrays.copyOf(existing, n);
+        for (int i = existing == null ? 0 : existing.length; i < n; i++) {
+            queues[i] = new ConcurrentLinkedQueue<PoolEntry>();
+        }
+        return queues;
+    }
+
+    //Returns the stripe of the calling thread
+    private int stripe() {
+        int mask = stripeMask;
+        if (mask == 0) {
+            return 0;
+        }
+        int h = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    //Returns the entries returned last by this thread, null for a virtual
+    //thread
+    private List<PoolEntry> threadEntries() {
+        if (IS_VIRTUAL != null) {
+            try {
+                if ((boolean) IS_VIRTUAL.invokeExact(Thread.currentThread())) {
+                    return null;
+                }
+            } catch (Throwable t) {
+                return null;
+            }
+        }
+        return threadEntries.get();
+    }
+
+    private static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class,
+                    "isVirtual", MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private void offer(PoolEntry e) {
+        if (e.markQueued()) {
+            //The mask may already be set for queues not yet seen here
+            ConcurrentLinkedQueue<PoolEntry>[] queues = freeEntries;
+            queues[stripe() & (queues.length - 1)].offer(e);
+        }
+    }
+
+    //Returns the highest rank which may be handed an entry
+    private int admitted() {
+        IntSupplier admission = this.admission;
+        return admission == null ? waiters.length - 1 : admission.getAsInt();
+    }
+
+    //Hands an entry in use to the next waiter still waiting, up to the
+    //highest rank given
+    private boolean handOff(PoolEntry e, int highest) {
+        Waiter w;
+        while ((w = next(highest)) != null) {
+            waiting.decrement();
+            if (w.serve(e)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Polls the first waiter of the lowest rank, or of a higher rank if it has
+    //been queued for longer than the aging time
+    private Waiter next(int highest) {
+        long agingTime = this.agingTime;
+        for (;;) {
+            int next = -1;
+            for (int i = 0; i <= highest; i++) {
+                Waiter w = waiters[i].peek();
+                if (w == null) {
+                    continue;
+                }
+                if (next < 0) {
+                    next = i;
+                    if (agingTime == 0) {
+                        break;
+                    }
+                } else if (System.nanoTime() - w.queuedAt > agingTime) {
+                    next = i;
+                    break;
+                }
+            }
+            if (next < 0) {
+                return null;
+            }
+            Waiter w = waiters[next].poll();
+            if (w != null) {
+                return w;
+            }
+        }
+    }
+
+    //Hands free entries to waiters which queued up while an entry was freed
+    private void handOffFree() {
+        while (hasWaiters()) {
+            PoolEntry e = poll();
+            if (e == null) {
+                return;
+            }
+            if (!handOff(e, admitted())) {
+                //None of the waiters is admitted
+                if (e.compareAndSet(STATE_IN_USE, STATE_FREE)) {
+                    offer(e);
+                }
+                return;
+            }
+        }
+    }
+
+    //Polls the stripe of the calling thread for a free entry, then steals
+    //from the other stripes
+    private PoolEntry poll() {
+        ConcurrentLinkedQueue<PoolEntry>[] queues = freeEntries;
+        int n = queues.length;
+        int home = stripe();
+        for (int i = 0; i < n; i++) {
+            PoolEntry e = poll(queues[(home + i) & (n - 1)]);
+            if (e != null) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    //Polls a queue for a free entry
+    private static PoolEntry poll(ConcurrentLinkedQueue<PoolEntry> queue) {
+        PoolEntry e;
+        while ((e = queue.poll()) != null) {
+            //Clear the flag before the state is claimed, so that a concurrent
+            //requite either sees the flag cleared and queues the entry again,
+            //or this thread sees the entry free and takes it.
+            e.clearQueued();
+            if (e.compareAndSet(STATE_FREE, STATE_IN_USE)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Cancels a waiter which has not been served yet.
+     *
+     * @param w Waiter
+     * @return boolean False if the waiter has been served already.
+     */
+    boolean cancel(Waiter w) {
+        if (w.cancel()) {
+            if (waiters[w.rank].remove(w)) {
+                waiting.decrement();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A thread waiting for an entry to be handed over. Subclasses may wait
+     * without a thread and override served().
+     */
+    static class Waiter {
+
+        //States
+        static final int WAITING = 0;
+        static final int SERVED = 1;
+        static final int CANCELLED = 2;
+        private static final AtomicIntegerFieldUpdater<Waiter> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Waiter.class, "state");
+        private final Thread thread;
+        final int rank;
+        final long queuedAt = System.nanoTime();
+        private volatile int state;
+        private volatile PoolEntry entry;
+
+        Waiter(Thread thread, int rank) {
+            this.thread = thread;
+            this.rank = rank;
+        }
+
+        final boolean serve(PoolEntry e) {
+            //Publish the entry before the state, the waiter reads it after
+            //seeing the state change
+            entry = e;
+            if (STATE.compareAndSet(this, WAITING, SERVED)) {
+                served(e);
+                return true;
+            }
+            entry = null;
+            return false;
+        }
+
+        /**
+         * Called on the serving thread once this waiter has been served.
+         *
+         * @param e PoolEntry. The entry handed over, or null if woken up
+         * without an entry.
+         */
+        void served(PoolEntry e) {
+            LockSupport.unpark(thread);
+        }
+
+        final boolean cancel() {
+            return STATE.compareAndSet(this, WAITING, CANCELLED);
+        }
+    }
+}
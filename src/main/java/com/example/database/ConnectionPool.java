@@ -15,6 +15,136 @@ public interface ConnectionPool {
      */
     public java.sql.Connection getConnection() throws java.sql.SQLException;
 
+    /**
+     * Provides a database connection, waiting up to the given time for one to
+     * be released if the pool is exhausted. The default implementation does
+     * not wait and calls getConnection().
+     *
+     * @param timeout long. Maximum time to wait, 0 to fail immediately.
+     * @param unit java.util.concurrent.TimeUnit. The unit of the timeout.
+     * @return java.sql.Connection
+     * @throws java.sql.SQLException if no connection became available in time.
+     */
+    public default java.sql.Connection getConnection(long timeout,
+            java.util.concurrent.TimeUnit unit) throws java.sql.SQLException {
+        return getConnection();
+    }
+
+    /**
+     * Provides a database connection for a request of the given priority.
+     * Requests of higher priority are served first while the pool is
+     * exhausted. The default implementation ignores the priority.
+     *
+     * @param priority com.example.database.Priority
+     * @return java.sql.Connection
+     * @throws java.sql.SQLException
+     */
+    public default java.sql.Connection getConnection(Priority priority)
+            throws java.sql.SQLException {
+        return getConnection();
+    }
+
+    /**
+     * Provides a database connection for a request of the given priority,
+     * waiting up to the given time for one if the pool is exhausted. The
+     * default implementation ignores the priority.
+     *
+     * @param priority com.example.database.Priority
+     * @param timeout long. Maximum time to wait, 0 to fail immediately.
+     * @param unit java.util.concurrent.TimeUnit. The unit of the timeout.
+     * @return java.sql.Connection
+     * @throws java.sql.SQLException if no connection became available in time.
+     */
+    public default java.sql.Connection getConnection(Priority priority,
+            long timeout, java.util.concurrent.TimeUnit unit)
+            throws java.sql.SQLException {
+        return getConnection(timeout, unit);
+    }
+
+    /**
+     * Provides a database connection counted against the quota of the given
+     * tag. The default implementation ignores the tag.
+     *
+     * @param tag String. The tag of the caller, e.g. the name of a module.
+     * @return java.sql.Connection
+     * @throws java.sql.SQLException
+     */
+    public default java.sql.Connection getConnection(String tag)
+            throws java.sql.SQLException {
+        return getConnection();
+    }
+
+    /**
+     * Provides a database connection counted against the quota of the given
+     * tag, waiting up to the given time for the quota and the pool. The
+     * default implementation ignores the tag.
+     *
+     * @param tag String. The tag of the caller, e.g. the name of a module.
+     * @param timeout long. Maximum time to wait, 0 to fail immediately.
+     * @param unit java.util.concurrent.TimeUnit. The unit of the timeout.
+     * @return java.sql.Connection
+     * @throws java.sql.SQLException if no connection became available in time.
+     */
+    public default java.sql.Connection getConnection(String tag, long timeout,
+            java.util.concurrent.TimeUnit unit) throws java.sql.SQLException {
+        return getConnection(timeout, unit);
+    }
+
+    /**
+     * Requests a database connection without blocking the caller. The stage
+     * completes once a connection is available, or exceptionally with a
+     * java.sql.SQLException if none became available in time. The default
+     * implementation calls getConnection() and returns a completed stage.
+     *
+     * @return java.util.concurrent.CompletionStage
+     */
+    public default java.util.concurrent.CompletionStage<java.sql.Connection> acquireAsync() {
+        java.util.concurrent.CompletableFuture<java.sql.Connection> future =
+                new java.util.concurrent.CompletableFuture<java.sql.Connection>();
+        try {
+            future.complete(getConnection());
+        } catch (java.sql.SQLException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Requests a database connection without blocking the caller, waiting up
+     * to the given time for one to be released if the pool is exhausted. The
+     * default implementation calls getConnection(timeout, unit) and returns a
+     * completed stage.
+     *
+     * @param timeout long. Maximum time to wait, 0 to fail immediately.
+     * @param unit java.util.concurrent.TimeUnit. The unit of the timeout.
+     * @return java.util.concurrent.CompletionStage
+     */
+    public default java.util.concurrent.CompletionStage<java.sql.Connection> acquireAsync(
+            long timeout, java.util.concurrent.TimeUnit unit) {
+        java.util.concurrent.CompletableFuture<java.sql.Connection> future =
+                new java.util.concurrent.CompletableFuture<java.sql.Connection>();
+        try {
+            future.complete(getConnection(timeout, unit));
+        } catch (java.sql.SQLException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Requests a database connection of the given priority without blocking
+     * the caller. The default implementation ignores the priority.
+     *
+     * @param priority com.example.database.Priority
+     * @param timeout long. Maximum time to wait, 0 to fail immediately.
+     * @param unit java.util.concurrent.TimeUnit. The unit of the timeout.
+     * @return java.util.concurrent.CompletionStage
+     */
+    public default java.util.concurrent.CompletionStage<java.sql.Connection> acquireAsync(
+            Priority priority, long timeout, java.util.concurrent.TimeUnit unit) {
+        return acquireAsync(timeout, unit);
+    }
+
     /**
      * Releases a connection provided by this pool.
      *
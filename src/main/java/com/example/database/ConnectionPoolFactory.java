@@ -1,14 +1,42 @@
 package com.example.database;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
 
 import org.slf4j.Logger;
 
@@ -22,31 +50,213 @@ import org.slf4j.LoggerFactory;
  * injected using the ConnectionPool interface. An example configuration:
  * <pre>
  * {@code
- * <bean id="pool" class="com.example.database.ConnectionPoolFactory">
+ * <bean id="pool" class="com.example.database.ConnectionPoolFactory"
+ *         destroy-method="shutdown">
  *     <constructor-arg name="driver" value="some.driver.class"/>
  *     <constructor-arg name="url" value="jdbc:example.url"/>
  *     <constructor-arg name="username" value="db.user"/>
  *     <constructor-arg name="password" value="db.password"/>
+ *     <property name="connectionTimeout" value="30000"/>
+ *     <property name="minIdle" value="2"/>
  * </bean>
  * }
  * </pre>
+ *
+ * New connections are opened outside of any lock after a slot in the pool has
+ * been reserved atomically, so a slow connect only delays the thread which
+ * needs it. Up to maxConcurrentCreations connects run in parallel. Unless lazy
+ * loaded, the pool is warmed up in parallel as well; the constructor waits
+ * for warmupMinimum connections and the rest are opened in the background.
+ *
+ * A housekeeper thread keeps between minIdle and maxIdle connections idle,
+ * opening spare connections in the background and closing the least
+ * recently used ones when the load goes down. It also retires connections
+ * idle longer than idleTimeout and connections older than maxLifetime, so
+ * that the database or a firewall does not drop them first. Call shutdown()
+ * to stop it, e.g. by declaring it as the destroy-method of the bean.
+ *
+ * A connection idle for longer than validationInterval is validated before it
+ * is handed out, with Connection.isValid() or a testQuery, or any other
+ * ConnectionValidator. Connections used more recently skip the round trip.
+ *
+ * With a leakDetectionThreshold, connections held for longer are logged along
+ * with the borrowing thread and, for a sample of the borrows, its stack. With
+ * an abandonedTimeout, connections held for longer are taken back and closed,
+ * so that a leak does not exhaust the pool for good.
+ *
+ * The pool does not hold a monitor while it blocks or talks to the database.
+ * Threads waiting for a connection are parked and database connections are
+ * opened without any lock held, so the pool can be shared by virtual threads
+ * without pinning their carrier threads.
+ *
+ * On machines with many cores, setting stripes spreads the idle connections
+ * over several queues, so that threads returning and taking connections at
+ * a high rate do not all contend on one. Each thread uses the queue it hashes
+ * to and takes connections from the others only when its own is empty. The
+ * queues share the maxConnections limit.
+ *
+ * Requests may be given a Priority. While the pool is exhausted, released
+ * connections go to the waiting requests of the highest priority first;
+ * requests waiting for longer than priorityAgingTime are served before
+ * higher priorities, so that they are not starved. With reservedConnections,
+ * requests of lower priorities are held back while only the connections
+ * reserved for higher ones are left.
+ *
+ * Callers sharing one pool can be kept apart with quotas: callers getting
+ * connections with a tag are limited to the maxInUse connections of its
+ * quota, and the guaranteed connections of a quota are kept from other
+ * callers. The counts of each tag are exposed, e.g. through the MBean.
+ *
+ * When connects keep failing, a circuit breaker fails further connects fast
+ * for a backoff period, which grows while the database stays down, instead of
+ * flooding it and the logs. One probe connect per period tests the database.
+ *
+ * The factory is also a javax.sql.DataSource, so that JDBC frameworks can share
+ * the pool. Connections requested for other credentials come from a lazily
+ * loaded sub-pool per user and password, which takes the settings of this
+ * pool when created and is shut down along with it. The credentials are
+ * checked with a first connect before the sub-pool is created. The
+ * connections of the sub-pools count against the maxConnections of this
+ * pool, a request finding the limit reached takes over the slot of an idle
+ * connection of another sub-pool.
+ *
+ * With registerMBean, the pool is registered as a PoolMXBean with the platform
+ * MBean server, to watch its counts and latencies and to suspend, resize or
+ * flush it at runtime. The attributes are read from counters, watching a busy
+ * pool does not slow it down.
  * @author Khandker Hasan
  */
-public class ConnectionPoolFactory implements ConnectionPool {
+public class ConnectionPoolFactory implements ConnectionPool, DataSource {
 
     //Connection parameters
     private String driver;
     private String url;
     private String username;
     private String password;
-    private int maxConnections;
+    private volatile int maxConnections;
+    //The number of connections which may be opened, held below
+    //maxConnections by the adaptive sizing
+    private volatile int connectionLimit;
     private boolean lazyLoad = false;
-    //Connection pools
-    private List<Connection> freeConnections = null;
-    private List<Connection> inUseConnections = null;
+    private int warmupMinimum;
+    private volatile long connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+    private volatile Executor asyncExecutor = null;
+    //Connection pool
+    private ConnectionBag bag = null;
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    //The pool creating this one as a sub-pool, or null
+    private final ConnectionPoolFactory parent;
+    //Connections of a pool and its sub-pools, limited by the connection limit
+    //of the pool
+    private final AtomicInteger slots;
+    private final Permits creationPermits =
+            new Permits(DEFAULT_MAX_CONCURRENT_CREATIONS);
+    private final CircuitBreaker breaker = new CircuitBreaker(
+            DEFAULT_CONNECT_FAILURE_THRESHOLD, DEFAULT_CONNECT_BACKOFF,
+            DEFAULT_MAX_CONNECT_BACKOFF);
+    //Background threads, started on demand
+    private ThreadPoolExecutor creator = null;
+    private ScheduledThreadPoolExecutor scheduler = null;
+    //Metrics
+    private volatile long warmupTime = -1;
+    private final LongAdder activeConnections = new LongAdder();
+    //Housekeeping
+    private volatile int minIdle = DEFAULT_MIN_IDLE;
+    private volatile int maxIdle = Integer.MAX_VALUE;
+    private volatile long housekeepingPeriod = DEFAULT_HOUSEKEEPING_PERIOD;
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile long maxLifetime = DEFAULT_MAX_LIFETIME;
+    //Validation
+    private volatile ConnectionValidator validator =
+            new ConnectionValidator.Jdbc4();
+    private volatile long validationTimeout = DEFAULT_VALIDATION_TIMEOUT;
+    private volatile long validationInterval = TimeUnit.MILLISECONDS.toNanos(
+            DEFAULT_VALIDATION_INTERVAL);
+    private volatile boolean backgroundValidation = false;
+    private final LongAdder validations = new LongAdder();
+    private final LongAdder validationFailures = new LongAdder();
+    private final LongAdder validationTime = new LongAdder();
+    //Statement cache
+    private volatile int statementCacheSize = 0;
+    final StatementCache.Counters statementCacheCounters =
+            new StatementCache.Counters();
+    private final LatencyHistogram acquireTime = new LatencyHistogram();
+    private final LatencyHistogram holdTime = new LatencyHistogram();
+    private final LatencyHistogram creationTime = new LatencyHistogram();
+    private final LongAdder timeouts = new LongAdder();
+    //Adaptive sizing
+    private volatile boolean adaptiveSizing = false;
+    private volatile int minConnections = 1;
+    private volatile long adaptiveSizingPeriod = DEFAULT_ADAPTIVE_SIZING_PERIOD;
+    private volatile ScheduledFuture<?> sizing = null;
+    //Counts the switches of the adaptive sizing, checked by a resize in
+    //progress
+    private final AtomicInteger sizingGeneration = new AtomicInteger();
+    //Connections kept for requests of each priority and above
+    private volatile int[] reservedConnections =
+            new int[Priority.values().length];
+    //Free connections a request of each rank leaves to lower ranks, besides
+    //the unused guarantees of the quotas; null if nothing is reserved
+    private volatile int[] admissionThresholds = null;
+    //Quotas by tag, and those with guaranteed connections
+    private final ConcurrentHashMap<String, Bulkhead> bulkheads =
+            new ConcurrentHashMap<String, Bulkhead>();
+    private volatile Bulkhead[] guarantees = new Bulkhead[0];
+    //Leak detection
+    private volatile long leakDetectionThreshold = 0;
+    private volatile int leakDetectionSampling = 1;
+    private volatile long abandonedTimeout = 0;
+    //Set while either of the above is enabled, checked on each borrow
+    private volatile boolean trackBorrows = false;
+    private final LongAdder leaks = new LongAdder();
+    private final LongAdder abandoned = new LongAdder();
+    private volatile ScheduledFuture<?> leakDetection = null;
+    //Sub-pools for other credentials requested as a DataSource
+    private final ConcurrentHashMap<List<String>, ConnectionPoolFactory>
+            subPools = new ConcurrentHashMap<List<String>,
+                    ConnectionPoolFactory>();
+    private volatile PrintWriter logWriter = null;
+    private volatile ScheduledFuture<?> housekeeping = null;
+    private final AtomicBoolean fillRequested = new AtomicBoolean();
+    private final AtomicInteger pendingFills = new AtomicInteger();
+    private volatile boolean shutdown = false;
+    //Completed on resume, set while the pool is suspended
+    private final AtomicReference<CompletableFuture<Void>> suspension =
+            new AtomicReference<CompletableFuture<Void>>();
+    //Management
+    private volatile String poolName = "pool-" + POOL_COUNT.incrementAndGet();
+    private ObjectName mbeanName = null;
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
     //Defaults
     private static final boolean DEFAULT_LAZY_LOAD = false;
     private static final int DEFAULT_MAX_CONNECTION = 10;
+    private static final long DEFAULT_CONNECTION_TIMEOUT = 0;
+    //Connection timeout of a DataSource login timeout of 0
+    private static final long NO_TIMEOUT = Long.MAX_VALUE;
+    private static final int DEFAULT_MAX_CONCURRENT_CREATIONS = 4;
+    private static final int DEFAULT_MIN_IDLE = 0;
+    private static final long DEFAULT_HOUSEKEEPING_PERIOD = 30000;
+    private static final long DEFAULT_IDLE_TIMEOUT = 0;
+    private static final long DEFAULT_MAX_LIFETIME = 0;
+    private static final double MAX_LIFETIME_JITTER = 0.025;
+    private static final long DEFAULT_VALIDATION_TIMEOUT = 5000;
+    private static final long DEFAULT_VALIDATION_INTERVAL = 500;
+    private static final long MIN_LEAK_DETECTION_PERIOD = 10;
+    private static final long DEFAULT_ADAPTIVE_SIZING_PERIOD = 1000;
+    private static final long DEFAULT_PRIORITY_AGING_TIME = 1000;
+    //Rank of requests within the guaranteed connections of their quota
+    private static final int GUARANTEED = 0;
+    private static final int DEFAULT_CONNECT_FAILURE_THRESHOLD = 5;
+    private static final long DEFAULT_CONNECT_BACKOFF = 100;
+    private static final long DEFAULT_MAX_CONNECT_BACKOFF = 30000;
+    private static final Comparator<PoolEntry> LEAST_RECENTLY_USED =
+            new Comparator<PoolEntry>() {
+
+                @Override
+                public int compare(PoolEntry a, PoolEntry b) {
+                    return Long.compare(a.lastAccessed, b.lastAccessed);
+                }
+            };
     //Logger
     private static final Logger logger =
             LoggerFactory.getLogger(ConnectionPoolFactory.class);
@@ -55,6 +265,8 @@ public class ConnectionPoolFactory implements ConnectionPool {
      * Default constructor.
      */
     private ConnectionPoolFactory() {
+        this.parent = null;
+        this.slots = new AtomicInteger();
     }
 
     /**
@@ -119,9 +331,57 @@ public class ConnectionPoolFactory implements ConnectionPool {
     protected ConnectionPoolFactory(String driver, String url, String username,
             String password, int maxConnection, boolean lazyLoad)
             throws SQLException {
+        this(driver, url, username, password, maxConnection, lazyLoad,
+                maxConnection);
+    }
+
+    /**
+     *  Constructor.
+     *
+     * @param driver String. The database driver.
+     * @param url String. The database url.
+     * @param username String. The database user.
+     * @param password String. The database password.
+     * @param maxConnection int. Maximum number of connections.
+     * @param lazyLoad boolean. The flag for lazy loading of connections.
+     * @param warmupMinimum int. Number of connections to wait for if not lazy
+     * loaded, the rest are opened in the background.
+     * @throws SQLException
+     */
+    protected ConnectionPoolFactory(String driver, String url, String username,
+            String password, int maxConnection, boolean lazyLoad,
+            int warmupMinimum)
+            throws SQLException {
+        this(driver, url, username, password, maxConnection, lazyLoad,
+                warmupMinimum, null);
+    }
+
+    /**
+     *  Constructor.
+     *
+     * @param driver String. The database driver.
+     * @param url String. The database url.
+     * @param username String. The database user.
+     * @param password String. The database password.
+     * @param maxConnection int. Maximum number of connections.
+     * @param lazyLoad boolean. The flag for lazy loading of connections.
+     * @param warmupMinimum int. Number of connections to wait for if not lazy
+     * loaded, the rest are opened in the background.
+     * @param parent ConnectionPoolFactory. The pool creating this one as a
+     * sub-pool, whose connection limit it shares, or null.
+     * @throws SQLException
+     */
+    private ConnectionPoolFactory(String driver, String url, String username,
+            String password, int maxConnection, boolean lazyLoad,
+            int warmupMinimum, ConnectionPoolFactory parent)
+            throws SQLException {
+        this.parent = parent;
+        this.slots = parent != null ? parent.slots : new AtomicInteger();
         this.driver = driver;
         this.maxConnections = maxConnection;
+        this.connectionLimit = maxConnection;
         this.lazyLoad = lazyLoad;
+        this.warmupMinimum = warmupMinimum;
         this.url = url;
         this.username = username;
         this.password = password;
@@ -130,47 +390,144 @@ public class ConnectionPoolFactory implements ConnectionPool {
                 + "|Username:" + username
                 + "|Password:" + password
                 + "|MaxConnection:" + maxConnection
-                + "|LazyLoad:" + lazyLoad + "|");
+                + "|LazyLoad:" + lazyLoad
+                + "|WarmupMinimum:" + warmupMinimum + "|");
         init();
     }
 
     @Override
-    public synchronized Connection getConnection() throws SQLException {
-        logger.trace("In Connection getConnection()");
-        Connection c = null;
-        if (freeConnections.size() > 0) {
-            c = freeConnections.remove(0);
-        } else if (inUseConnections.size() < maxConnections) {
-            c = getProxyConnection();
-        } else {
-            throw new SQLException(Errors.MAX_CONNECTION_REACHED);
+    public Connection getConnection() throws SQLException {
+        return getConnection(connectionTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Connection getConnection(long timeout, TimeUnit unit)
+            throws SQLException {
+        return getConnection(Priority.NORMAL, timeout, unit);
+    }
+
+    @Override
+    public Connection getConnection(Priority priority) throws SQLException {
+        return getConnection(priority, connectionTimeout,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Connection getConnection(Priority priority, long timeout,
+            TimeUnit unit) throws SQLException {
+        logger.trace("In Connection getConnection(Priority priority,"
+                + " long timeout, TimeUnit unit)");
+        long start = System.nanoTime();
+        Connection c = prepare(acquire(rank(priority), unit.toNanos(timeout)));
+        acquireTime.record(System.nanoTime() - start);
+        return c;
+    }
+
+    @Override
+    public Connection getConnection(String tag) throws SQLException {
+        return getConnection(tag, connectionTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Connection getConnection(String tag, long timeout, TimeUnit unit)
+            throws SQLException {
+        logger.trace("In Connection getConnection(String tag, long timeout,"
+                + " TimeUnit unit)");
+        Bulkhead bulkhead = tag == null ? null : bulkheads.get(tag);
+        if (bulkhead == null) {
+            return getConnection(Priority.NORMAL, timeout, unit);
         }
-        if (c != null && Proxy.isProxyClass(c.getClass())) {
-            ProxyConnection pc = (ProxyConnection) Proxy.getInvocationHandler(c);
-            if (pc.c == null || pc.c.isClosed()) {
-                pc.c = getDbConnection();
-            }
-            pc.closed = false;
+        long start = System.nanoTime();
+        long nanos = timeout <= 0 ? 0 : unit.toNanos(timeout);
+        int n;
+        try {
+            n = bulkhead.acquire(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(Errors.INTERRUPTED, e);
         }
-        //If there are no exceptions, add the connection to in use pool
-        inUseConnections.add(c);
-        debug("After getConnection() - free: " + freeConnections.size()
-                + " in use: " + inUseConnections.size());
+        if (n == 0) {
+            throw timedOut(Errors.QUOTA_REACHED);
+        }
+        Connection c;
+        try {
+            //Keep trying until the deadline if the quota took all the time
+            PoolEntry entry = acquire(n <= bulkhead.getGuaranteed()
+                    ? GUARANTEED : rank(Priority.NORMAL), nanos == 0 ? 0
+                    : Math.max(1, nanos - (System.nanoTime() - start)));
+            entry.bulkhead = bulkhead;
+            c = prepare(entry);
+        } catch (SQLException e) {
+            bulkhead.release();
+            throw e;
+        }
+        acquireTime.record(System.nanoTime() - start);
         return c;
     }
 
     @Override
-    public synchronized void releaseConnection(Connection c)
-            throws SQLException {
+    public CompletionStage<Connection> acquireAsync() {
+        return acquireAsync(connectionTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public CompletionStage<Connection> acquireAsync(long timeout,
+            TimeUnit unit) {
+        return acquireAsync(Priority.NORMAL, timeout, unit);
+    }
+
+    @Override
+    public CompletionStage<Connection> acquireAsync(Priority priority,
+            long timeout, TimeUnit unit) {
+        logger.trace("In CompletionStage<Connection> acquireAsync(Priority"
+                + " priority, long timeout, TimeUnit unit)");
+        CompletableFuture<Connection> future =
+                new CompletableFuture<Connection>();
+        long start = System.nanoTime();
+        acquireAsync(future, rank(priority),
+                timeout <= 0 ? 0 : start + unit.toNanos(timeout), start);
+        return future;
+    }
+
+    @Override
+    public void releaseConnection(Connection c) throws SQLException {
         logger.trace("In void releaseConnection(Connection c)");
         if (c != null) {
-            if (Proxy.isProxyClass(c.getClass())
-                    && Proxy.getInvocationHandler(c) instanceof ProxyConnection) {
-                ProxyConnection pc =
-                        (ProxyConnection) Proxy.getInvocationHandler(c);
-                pc.closed = true;
-                inUseConnections.remove(c);
-                freeConnections.add(c);
+            if (c instanceof ProxyConnection) {
+                ProxyConnection pc = (ProxyConnection) c;
+                if (pc.cpf != this) {
+                    pc.cpf.releaseConnection(c);
+                    return;
+                }
+                PoolEntry entry = pc.entry;
+                if (entry.endLease()) {
+                    pc.closed = true;
+                    pc.closeStatements();
+                    activeConnections.decrement();
+                    releaseQuota(entry);
+                    entry.lastAccessed = System.nanoTime();
+                    holdTime.record(entry.lastAccessed - entry.borrowedAt);
+                    if (entry.leakReported) {
+                        logger.info("Connection " + pc.c + " reported as"
+                                + " leaked was returned after " + TimeUnit
+                                .NANOSECONDS.toMillis(entry.lastAccessed
+                                - entry.borrowedAt) + " ms");
+                        entry.leakReported = false;
+                    }
+                    entry.borrower = null;
+                    entry.borrowSite = null;
+                    if (shutdown) {
+                        removeEntry(entry);
+                    } else if (totalConnections.get() > connectionLimit) {
+                        //The pool was resized below its connections
+                        retire(entry, false);
+                    } else if (entry.evicted || !pc.resetSession()) {
+                        retire(entry, true);
+                    } else {
+                        bag.requite(entry);
+                        signalShared();
+                    }
+                }
             } else {
                 logger.warn("Attempting to close a connection which was"
                         + " not provided by this pool!");
@@ -181,203 +538,2705 @@ public class ConnectionPoolFactory implements ConnectionPool {
                 }
             }
         }
-        debug("After releaseConnection() - free: " + freeConnections.size()
-                + " in use: " + inUseConnections.size());
+        if (logger.isDebugEnabled()) {
+            debug("After releaseConnection() - free: " + free()
+                    + " in use: " + inUse());
+        }
     }
 
     /**
-     * Initializes this pool. Registers the driver, initializes the pool arrays
-     * and caches the connections if not lazy loaded.
+     * Provides a database connection for the given credentials, from a
+     * sub-pool of connections opened with them.
      *
+     * @param username String. The database user.
+     * @param password String. The database password.
+     * @return java.sql.Connection
      * @throws SQLException
      */
-    private void init() throws SQLException {
-        //Register the driver
-        try {
-            DriverManager.registerDriver(
-                    (Driver) Class.forName(driver).newInstance());
-        } catch (Throwable t) {
-            logger.error(Errors.FAIL_REGISTER_DRIVER, t);
-            throw new SQLException(Errors.FAIL_REGISTER_DRIVER, t);
+    @Override
+    public Connection getConnection(String username, String password)
+            throws SQLException {
+        logger.trace("In Connection getConnection(String username,"
+                + " String password)");
+        if (Objects.equals(username, this.username)
+                && Objects.equals(password, this.password)) {
+            return getConnection();
         }
-        //Create the arrays
-        freeConnections = new ArrayList<Connection>(maxConnections);
-        inUseConnections = new ArrayList<Connection>(maxConnections);
-        //Load the connections if not lazy loaded
-        if (!lazyLoad) {
-            for (int i = 0; i < maxConnections; i++) {
-                Connection p = getProxyConnection();
-                freeConnections.add(p);
+        List<String> credentials = Arrays.asList(username, password);
+        ConnectionPoolFactory pool = subPools.get(credentials);
+        if (pool == null) {
+            if (shutdown) {
+                throw new SQLException(Errors.POOL_SHUTDOWN);
+            }
+            //Check the credentials before creating a pool for them, with a
+            //creation permit and through the circuit breaker of this pool
+            long timeout = connectionTimeout;
+            Connection c = getDbConnection(username, password, timeout <= 0
+                    ? 0 : System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(timeout));
+            ConnectionPoolFactory created;
+            try {
+                created = new ConnectionPoolFactory(driver, url, username,
+                        password, maxConnections, true, 0, this);
+            } catch (SQLException e) {
+                closeConnection(c);
+                throw e;
+            }
+            configure(created);
+            pool = subPools.putIfAbsent(credentials, created);
+            if (pool == null) {
+                pool = created;
+                if (shutdown) {
+                    //Missed by shutdown()
+                    subPools.remove(credentials);
+                    created.shutdown();
+                }
+                created.adopt(c);
+            } else {
+                created.shutdown();
+                closeConnection(c);
             }
         }
+        return pool.getConnection();
     }
 
     /**
-     * Returns a proxy connection maintained by this pool.
+     * Adds a database connection opened by the caller to the idle
+     * connections, or closes it if the pool is full.
      *
-     * @return c java.sql.Connection
-     * @throws SQLException
+     * @param c java.sql.Connection
      */
-    private Connection getProxyConnection() throws SQLException {
+    private void adopt(Connection c) {
+        if (shutdown || !reserveSlot()) {
+            closeConnection(c);
+            return;
+        }
+        PoolEntry entry;
         try {
-            Connection c = getDbConnection();
-            Object p = Proxy.newProxyInstance(c.getClass().getClassLoader(),
-                    new Class[]{java.sql.Connection.class},
-                    new ProxyConnection(c, this));
-            return (Connection) p;
-        } catch (Throwable t) {
-            if (t instanceof SQLException) {
-                throw (SQLException) t;
-            } else {
-                logger.error(Errors.FAIL_CONNECTION, t);
-                throw new SQLException(Errors.FAIL_CONNECTION, t);
-            }
+            entry = new PoolEntry(new ProxyConnection(c, this));
+        } catch (SQLException e) {
+            closeConnection(c);
+            releaseSlot();
+            return;
+        }
+        bag.add(entry);
+        addIdle(entry);
+    }
+
+    //Applies the settings of this pool to a sub-pool
+    private void configure(ConnectionPoolFactory pool) {
+        pool.setConnectionTimeout(connectionTimeout);
+        pool.setAsyncExecutor(asyncExecutor);
+        pool.setMaxConcurrentCreations(getMaxConcurrentCreations());
+        pool.setStripes(getStripes());
+        pool.setPriorityAgingTime(getPriorityAgingTime());
+        for (Priority priority : Priority.values()) {
+            pool.setReservedConnections(priority,
+                    getReservedConnections(priority));
         }
+        pool.setConnectFailureThreshold(getConnectFailureThreshold());
+        pool.setConnectBackoff(getConnectBackoff());
+        pool.setMaxConnectBackoff(getMaxConnectBackoff());
+        pool.setMinIdle(minIdle);
+        pool.setMaxIdle(maxIdle);
+        pool.setIdleTimeout(idleTimeout);
+        pool.setMaxLifetime(maxLifetime);
+        pool.setValidator(validator);
+        pool.setValidationTimeout(validationTimeout);
+        pool.setValidationInterval(getValidationInterval());
+        pool.setBackgroundValidation(backgroundValidation);
+        pool.setStatementCacheSize(statementCacheSize);
+        pool.setHousekeepingPeriod(housekeepingPeriod);
+        pool.setMinConnections(minConnections);
+        pool.setAdaptiveSizingPeriod(adaptiveSizingPeriod);
+        pool.setAdaptiveSizing(adaptiveSizing);
+        pool.setLogWriter(logWriter);
+        if (isSuspended()) {
+            pool.suspend();
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return logWriter;
     }
 
     /**
-     * Returns an actual database connection from the provided database
-     * properties.
+     * Sets the log writer of the DataSource. The pool logs through SLF4J, the
+     * writer is only kept for callers which expect it back.
      *
-     * @return c java.sql.Connection
-     * @throws SQLException
+     * @param out java.io.PrintWriter
      */
-    private Connection getDbConnection() throws SQLException {
-        try {
-            Connection c = DriverManager.getConnection(url, username, password);
-            return c;
-        } catch (Throwable t) {
-            logger.error(Errors.FAIL_CONNECTION, t);
-            throw new SQLException(Errors.FAIL_CONNECTION, t);
+    @Override
+    public void setLogWriter(PrintWriter out) {
+        this.logWriter = out;
+    }
+
+    /**
+     * Sets the time to wait for a connection, in seconds. Same as the
+     * connectionTimeout, except that 0 waits without a limit as the
+     * DataSource contract requires.
+     *
+     * @param seconds int. 0 for no limit.
+     */
+    @Override
+    public void setLoginTimeout(int seconds) {
+        setConnectionTimeout(seconds > 0 ? TimeUnit.SECONDS.toMillis(seconds)
+                : NO_TIMEOUT);
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        long timeout = connectionTimeout;
+        return timeout == NO_TIMEOUT ? 0
+                : (int) TimeUnit.MILLISECONDS.toSeconds(timeout + 999);
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger()
+            throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException(Errors.NO_PARENT_LOGGER);
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
         }
+        throw new SQLException(Errors.NOT_A_WRAPPER + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
     }
 
     /**
-     * A non-threadsafe method to return the number of free connections. Used
-     * for unit testing.
-     * 
-     * @return int Free connections.
+     * Returns the default time to wait for a connection when the pool is
+     * exhausted.
+     *
+     * @return long Timeout in milliseconds, 0 to fail immediately.
      */
-    int free() {
-        return freeConnections.size();
+    public long getConnectionTimeout() {
+        return connectionTimeout;
     }
 
     /**
-     * A non-threadsafe method to return the number of connections in use. Used
-     * for unit testing.
+     * Sets the default time to wait for a connection when the pool is
+     * exhausted. Used by getConnection() without a timeout.
      *
-     * @return int Connections in use.
+     * @param connectionTimeout long. Timeout in milliseconds, 0 to fail
+     * immediately.
      */
-    int inUse() {
-        return inUseConnections.size();
+    public void setConnectionTimeout(long connectionTimeout) {
+        this.connectionTimeout = Math.max(0, connectionTimeout);
     }
 
     /**
-     * A utility method for unit testing.
+     * Returns the executor which completes asynchronous requests when a
+     * connection is released.
      *
-     * @throws SQLException
+     * @return java.util.concurrent.Executor The executor, or null if requests
+     * are completed on the releasing thread.
      */
-    void releaseAll() throws SQLException {
-        for (Connection c : new ArrayList<Connection>(inUseConnections)) {
-            releaseConnection(c);
-        }
+    public Executor getAsyncExecutor() {
+        return asyncExecutor;
     }
 
-    //Utility method for debug
-    private void debug(String msg) {
-        if (logger.isDebugEnabled()) {
-            logger.debug(msg);
-        }
+    /**
+     * Sets the executor which completes asynchronous requests when a
+     * connection is released. By default they are completed on the thread
+     * releasing the connection, so dependent stages should not block.
+     *
+     * @param asyncExecutor java.util.concurrent.Executor. The executor, or
+     * null to complete on the releasing thread.
+     */
+    public void setAsyncExecutor(Executor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
     }
 
-    //Error definitions
-    final class Errors {
+    /**
+     * Returns the minimum number of idle connections kept ready.
+     *
+     * @return int
+     */
+    public int getMinIdle() {
+        return minIdle;
+    }
 
-        public static final String MAX_CONNECTION_REACHED =
-                "Maximum number of connections reached!";
-        public static final String CONNECTION_CLOSED =
-                "Connection is closed!";
-        public static final String FAIL_REGISTER_DRIVER =
-                "Failed to register driver!";
-        public static final String FAIL_CONNECTION =
-                "Failed to get connection!";
+    /**
+     * Sets the minimum number of idle connections kept ready. The housekeeper
+     * opens connections in the background whenever fewer are idle, as long as
+     * the pool is not full, so callers do not have to wait for a connect.
+     *
+     * @param minIdle int. 0 to open connections only when needed.
+     */
+    public void setMinIdle(int minIdle) {
+        this.minIdle = Math.max(0, minIdle);
+        requestFill();
     }
 
     /**
-     * A proxy class that has java.sql.Connection interface as one of the proxy
-     * interfaces. This class is returned when a request for a connection is
-     * made to this pool.
+     * Returns the maximum number of idle connections kept open.
+     *
+     * @return int
      */
-    final class ProxyConnection implements InvocationHandler {
+    public int getMaxIdle() {
+        return maxIdle;
+    }
 
-        Connection c = null;
-        ConnectionPoolFactory cpf = null;
-        boolean closed = true;
-        //Constants
-        private final String CLOSE_METHOD = "close";
-        private final String EQUALS_METHOD = "equals";
-        private final String HASHCODE_METHOD = "hashCode";
-        private final String IS_CLOSED_METHOD = "isClosed";
+    /**
+     * Sets the maximum number of idle connections kept open. The housekeeper
+     * closes the least recently used idle connections above this number, so
+     * the pool shrinks when the load goes down. Never below minIdle.
+     *
+     * @param maxIdle int.
+     */
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = Math.max(0, maxIdle);
+    }
 
-        /**
-         * Constructor
-         *
-         * @param c java.sql.Connection
-         * @param cpf com.example.database.ConnectionPoolFactory
-         */
-        public ProxyConnection(Connection c, ConnectionPoolFactory cpf) {
-            this.c = c;
-            this.cpf = cpf;
-        }
+    /**
+     * Returns the time after which idle connections are closed.
+     *
+     * @return long Timeout in milliseconds, 0 if disabled.
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            return o == null ? false : this.hashCode() == o.hashCode();
-        }
+    /**
+     * Sets the time after which idle connections are closed by the
+     * housekeeper, keeping at least minIdle. Should be shorter than the idle
+     * timeout of the database and any firewall in between.
+     *
+     * @param idleTimeout long. Timeout in milliseconds, 0 to disable.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = Math.max(0, idleTimeout);
+    }
 
-        @Override
-        public int hashCode() {
-            int hash = 7;
-            hash = 41 * hash + (this.c != null ? this.c.hashCode() : 0);
-            hash = 41 * hash + (this.cpf != null ? this.cpf.hashCode() : 0);
-            return hash;
-        }
+    /**
+     * Returns the maximum lifetime of a connection.
+     *
+     * @return long Lifetime in milliseconds, 0 if disabled.
+     */
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
 
-        @Override
-        public Object invoke(Object o, Method method, Object[] args)
-                throws Throwable {
-            //Return the compare result of this proxy connection
-            if (method.getName().equals(EQUALS_METHOD)) {
-                return this.equals(o);
-            }
-            //Return generated hash code of this proxy connection
-            if (method.getName().equals(HASHCODE_METHOD)) {
-                return this.hashCode();
-            }
-            //Return the closed status of the proxy connection instead of the
-            //database connection
-            if (method.getName().equals(IS_CLOSED_METHOD)) {
-                return closed;
-            }
-            logger.trace("In invoke(Object o, Method method, Object[] args) "
-                    + "for method " + method.getName());
-            try {
-                if (!closed) {
-                    if (method.getName().equals(CLOSE_METHOD)) {
-                        logger.warn("Attempting to close a connection without "
-                                + "using the corresponding pool, using the pool"
-                                + " to close!");
-                        cpf.releaseConnection((Connection) o);
-                        return null;
-                    } else {
-                        return method.invoke(c, args);
-                    }
-                } else {
-                    throw new Throwable(new SQLException(Errors.CONNECTION_CLOSED));
-                }
-            } catch (Throwable t) {
-                throw t.getCause();
-            }
-        }
+    /**
+     * Sets the maximum lifetime of a connection. The housekeeper retires idle
+     * connections which outlived it and opens new ones in their place;
+     * connections in use are retired when they are returned. Each connection
+     * is retired up to 2.5% earlier at random, so that connections opened
+     * together are not recycled all at once.
+     *
+     * @param maxLifetime long. Lifetime in milliseconds, 0 to disable.
+     */
+    public void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = Math.max(0, maxLifetime);
+    }
+
+    /**
+     * Returns the validator of connections.
+     *
+     * @return com.example.database.ConnectionValidator
+     */
+    public ConnectionValidator getValidator() {
+        return validator;
+    }
+
+    /**
+     * Sets the validator of connections.
+     *
+     * @param validator com.example.database.ConnectionValidator
+     */
+    public void setValidator(ConnectionValidator validator) {
+        this.validator = validator != null ? validator
+                : new ConnectionValidator.Jdbc4();
+    }
+
+    /**
+     * Sets a query to validate connections with, instead of
+     * Connection.isValid(). Needed for drivers older than JDBC 4.
+     *
+     * @param testQuery String. A cheap query, e.g. SELECT 1, or null to use
+     * Connection.isValid().
+     */
+    public void setTestQuery(String testQuery) {
+        setValidator(testQuery != null && testQuery.length() > 0
+                ? new ConnectionValidator.Query(testQuery) : null);
+    }
+
+    /**
+     * Returns the time to wait for a connection to be validated.
+     *
+     * @return long Timeout in milliseconds.
+     */
+    public long getValidationTimeout() {
+        return validationTimeout;
+    }
+
+    /**
+     * Sets the time to wait for a connection to be validated. Rounded up to
+     * whole seconds for JDBC.
+     *
+     * @param validationTimeout long. Timeout in milliseconds.
+     */
+    public void setValidationTimeout(long validationTimeout) {
+        this.validationTimeout = Math.max(0, validationTimeout);
+    }
+
+    /**
+     * Returns the idle time after which a connection is validated.
+     *
+     * @return long Interval in milliseconds.
+     */
+    public long getValidationInterval() {
+        return TimeUnit.NANOSECONDS.toMillis(validationInterval);
+    }
+
+    /**
+     * Sets the idle time after which a connection is validated before it is
+     * handed out. Connections used more recently are handed out without a
+     * round trip to the database.
+     *
+     * @param validationInterval long. Interval in milliseconds, 0 to validate
+     * on every borrow.
+     */
+    public void setValidationInterval(long validationInterval) {
+        this.validationInterval = TimeUnit.MILLISECONDS.toNanos(
+                Math.max(0, validationInterval));
+    }
+
+    /**
+     * Returns whether the housekeeper validates idle connections.
+     *
+     * @return boolean
+     */
+    public boolean isBackgroundValidation() {
+        return backgroundValidation;
+    }
+
+    /**
+     * Sets whether the housekeeper validates the connections idle for longer
+     * than the validation interval, replacing the broken ones before they
+     * are borrowed.
+     *
+     * @param backgroundValidation boolean
+     */
+    public void setBackgroundValidation(boolean backgroundValidation) {
+        this.backgroundValidation = backgroundValidation;
+    }
+
+    /**
+     * Returns the number of validations done.
+     *
+     * @return long
+     */
+    public long getValidationCount() {
+        return validations.sum();
+    }
+
+    /**
+     * Returns the number of failed validations.
+     *
+     * @return long
+     */
+    public long getValidationFailureCount() {
+        return validationFailures.sum();
+    }
+
+    /**
+     * Returns the total time spent validating connections.
+     *
+     * @return long Time in milliseconds.
+     */
+    public long getValidationTime() {
+        return TimeUnit.NANOSECONDS.toMillis(validationTime.sum());
+    }
+
+    /**
+     * Returns the number of prepared statements cached per connection.
+     *
+     * @return int
+     */
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * Sets the number of prepared statements cached per connection. A
+     * prepared statement closed by the caller is kept and handed out again
+     * when the same SQL is prepared on the same connection, the least
+     * recently used ones are closed beyond this size.
+     *
+     * @param statementCacheSize int. 0 to disable the cache.
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = Math.max(0, statementCacheSize);
+    }
+
+    /**
+     * Returns the number of prepared statements served from the cache.
+     *
+     * @return long
+     */
+    public long getStatementCacheHits() {
+        return statementCacheCounters.hits.sum();
+    }
+
+    /**
+     * Returns the number of prepared statements not found in the cache.
+     *
+     * @return long
+     */
+    public long getStatementCacheMisses() {
+        return statementCacheCounters.misses.sum();
+    }
+
+    /**
+     * Returns the number of prepared statements evicted from the cache.
+     *
+     * @return long
+     */
+    public long getStatementCacheEvictions() {
+        return statementCacheCounters.evictions.sum();
+    }
+
+    /**
+     * Returns the histogram of the time callers waited for a connection, from
+     * the request until the connection was handed out.
+     *
+     * @return com.example.database.LatencyHistogram
+     */
+    public LatencyHistogram getAcquireTimeHistogram() {
+        return acquireTime;
+    }
+
+    /**
+     * Returns the histogram of the time connections were held by callers.
+     *
+     * @return com.example.database.LatencyHistogram
+     */
+    public LatencyHistogram getHoldTimeHistogram() {
+        return holdTime;
+    }
+
+    /**
+     * Returns the histogram of the time taken to open database connections.
+     *
+     * @return com.example.database.LatencyHistogram
+     */
+    public LatencyHistogram getCreationTimeHistogram() {
+        return creationTime;
+    }
+
+    /**
+     * Returns the number of requests which found no connection in time.
+     *
+     * @return long
+     */
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Returns the number of connections handed out.
+     *
+     * @return int
+     */
+    public int getActiveConnections() {
+        return (int) Math.max(0, activeConnections.sum());
+    }
+
+    /**
+     * Returns the number of connections not handed out, including those
+     * being opened.
+     *
+     * @return int
+     */
+    public int getIdleConnections() {
+        return Math.max(0, getTotalConnections() - getActiveConnections());
+    }
+
+    /**
+     * Returns the number of connections, including those being opened.
+     *
+     * @return int
+     */
+    public int getTotalConnections() {
+        return totalConnections.get();
+    }
+
+    /**
+     * Returns the number of requests waiting for a connection.
+     *
+     * @return int
+     */
+    public int getPendingRequests() {
+        return bag.waiting();
+    }
+
+    /**
+     * Returns the time after which a connection not returned is reported as
+     * a possible leak.
+     *
+     * @return long Threshold in milliseconds, 0 if disabled.
+     */
+    public long getLeakDetectionThreshold() {
+        return leakDetectionThreshold;
+    }
+
+    /**
+     * Sets the time after which a connection not returned is logged as a
+     * possible leak, with the thread which borrowed it and where.
+     *
+     * @param leakDetectionThreshold long. Threshold in milliseconds, 0 to
+     * disable.
+     */
+    public void setLeakDetectionThreshold(long leakDetectionThreshold) {
+        this.leakDetectionThreshold = Math.max(0, leakDetectionThreshold);
+        scheduleLeakDetection();
+    }
+
+    /**
+     * Returns how many borrows share one captured stack.
+     *
+     * @return int
+     */
+    public int getLeakDetectionSampling() {
+        return leakDetectionSampling;
+    }
+
+    /**
+     * Captures the stack of one in the given number of borrows, picked at
+     * random, while leak detection is enabled. The other borrows only record
+     * the thread. Capturing a stack costs microseconds, sample when
+     * connections are borrowed at a high rate.
+     *
+     * @param leakDetectionSampling int. 1 to capture every borrow.
+     */
+    public void setLeakDetectionSampling(int leakDetectionSampling) {
+        this.leakDetectionSampling = Math.max(1, leakDetectionSampling);
+    }
+
+    /**
+     * Returns the time after which a connection not returned is taken back.
+     *
+     * @return long Timeout in milliseconds, 0 if disabled.
+     */
+    public long getAbandonedTimeout() {
+        return abandonedTimeout;
+    }
+
+    /**
+     * Sets the time after which a connection not returned is considered
+     * abandoned. Its database connection is closed and replaced, the caller
+     * gets CONNECTION_CLOSED when it uses the connection again.
+     *
+     * @param abandonedTimeout long. Timeout in milliseconds, 0 to disable.
+     */
+    public void setAbandonedTimeout(long abandonedTimeout) {
+        this.abandonedTimeout = Math.max(0, abandonedTimeout);
+        scheduleLeakDetection();
+    }
+
+    /**
+     * Returns the number of connections reported as possible leaks.
+     *
+     * @return long
+     */
+    public long getLeakCount() {
+        return leaks.sum();
+    }
+
+    /**
+     * Returns the number of abandoned connections taken back.
+     *
+     * @return long
+     */
+    public long getAbandonedCount() {
+        return abandoned.sum();
+    }
+
+    /**
+     * Returns the period of the housekeeper.
+     *
+     * @return long Period in milliseconds.
+     */
+    public long getHousekeepingPeriod() {
+        return housekeepingPeriod;
+    }
+
+    /**
+     * Sets the period of the housekeeper, which maintains the idle
+     * connections of this pool in the background.
+     *
+     * @param housekeepingPeriod long. Period in milliseconds.
+     */
+    public void setHousekeepingPeriod(long housekeepingPeriod) {
+        this.housekeepingPeriod = Math.max(1, housekeepingPeriod);
+        scheduleHousekeeping();
+    }
+
+    /**
+     * Shuts this pool down. Stops the background threads and closes the idle
+     * connections; connections in use are closed when they are released.
+     * Threads waiting for a connection fail. Use as destroy method with
+     * spring.
+     */
+    public void shutdown() {
+        if (shutdown) {
+            return;
+        }
+        shutdown = true;
+        logger.info("Shutting down connection pool");
+        for (ConnectionPoolFactory pool : subPools.values()) {
+            pool.shutdown();
+        }
+        subPools.clear();
+        unregisterMBean();
+        //The timeouts of the waiting asynchronous requests are dropped, the
+        //requests fail when the waiters are woken up below
+        scheduler.shutdownNow();
+        trackBorrows = false;
+        //Fail the asynchronous requests queued on the creator threads
+        for (Runnable task : creator.shutdownNow()) {
+            if (task instanceof AsyncTask) {
+                ((AsyncTask) task).abort();
+            }
+        }
+        for (PoolEntry e : bag.values(PoolEntry.STATE_FREE)) {
+            if (bag.reserve(e)) {
+                removeEntry(e);
+            }
+        }
+        //Close the idle connections which were being validated as well
+        for (PoolEntry e : bag.values(PoolEntry.STATE_RESERVED)) {
+            removeEntry(e);
+        }
+        bag.signalAll();
+        //Fail the requests waiting for the pool to resume
+        resume();
+    }
+
+    /**
+     * Returns the maximum number of connections.
+     *
+     * @return int
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Resizes the pool at runtime. Waiters are woken up to open connections
+     * when it grows. When it shrinks, the least recently used idle
+     * connections above the new maximum are closed right away and
+     * connections in use when they are returned. With adaptive sizing, sets
+     * the upper bound of the connection limit.
+     *
+     * @param maxConnections int. At least 1.
+     */
+    public void setMaxConnections(int maxConnections) {
+        int n = Math.max(1, maxConnections);
+        logger.info("Resizing connection pool from " + this.maxConnections
+                + " to " + n + " connections");
+        this.maxConnections = n;
+        resize(adaptiveSizing ? Math.min(connectionLimit, n) : n);
+    }
+
+    /**
+     * Returns the number of connections which may be opened. Equals
+     * maxConnections unless adaptive sizing holds the pool back.
+     *
+     * @return int
+     */
+    public int getConnectionLimit() {
+        return connectionLimit;
+    }
+
+    /**
+     * Changes the connection limit for the adaptive sizing, unless it has
+     * been disabled meanwhile. If it is disabled while the pool is resized,
+     * the limit is put back to maxConnections, so that a controller run in
+     * progress does not undo setAdaptiveSizing(). No lock is held, waiters
+     * woken up by the resize may complete asynchronous requests.
+     *
+     * @param limit int
+     */
+    void resizeAdaptive(int limit) {
+        int generation = sizingGeneration.get();
+        if (!adaptiveSizing || shutdown) {
+            return;
+        }
+        resize(limit);
+        if (sizingGeneration.get() != generation && !adaptiveSizing) {
+            resize(maxConnections);
+        }
+    }
+
+    /**
+     * Sets the number of connections which may be opened. Waiters are woken
+     * up to open connections when it grows, idle connections above it are
+     * closed when it shrinks.
+     *
+     * @param limit int
+     */
+    void resize(int limit) {
+        int n = Math.max(1, limit);
+        int previous = connectionLimit;
+        connectionLimit = n;
+        if (n > previous) {
+            bag.signalAll();
+            return;
+        }
+        List<PoolEntry> idle = bag.values(PoolEntry.STATE_FREE);
+        Collections.sort(idle, LEAST_RECENTLY_USED);
+        for (PoolEntry e : idle) {
+            if (totalConnections.get() <= n) {
+                break;
+            }
+            if (bag.reserve(e)) {
+                retire(e, false);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the connection limit adapts to the load.
+     *
+     * @return boolean
+     */
+    public boolean isAdaptiveSizing() {
+        return adaptiveSizing;
+    }
+
+    /**
+     * Sets whether the connection limit adapts to the load, between
+     * minConnections and maxConnections. The limit grows while callers wait
+     * for connections and shrinks towards the number of connections in use
+     * otherwise, see PoolSizeController. It also shrinks when connections
+     * are held longer than usual, a sign that the database slows down under
+     * the load. When disabled, the limit goes back to maxConnections.
+     *
+     * @param adaptiveSizing boolean
+     */
+    public void setAdaptiveSizing(boolean adaptiveSizing) {
+        this.adaptiveSizing = adaptiveSizing;
+        sizingGeneration.incrementAndGet();
+        scheduleSizing();
+        if (!adaptiveSizing) {
+            resize(maxConnections);
+        }
+    }
+
+    /**
+     * Returns the lower bound of the adaptive connection limit.
+     *
+     * @return int
+     */
+    public int getMinConnections() {
+        return minConnections;
+    }
+
+    /**
+     * Sets the lower bound of the adaptive connection limit.
+     *
+     * @param minConnections int. At least 1.
+     */
+    public void setMinConnections(int minConnections) {
+        this.minConnections = Math.max(1, minConnections);
+    }
+
+    /**
+     * Returns the period at which the adaptive sizing adjusts the limit.
+     *
+     * @return long Period in milliseconds.
+     */
+    public long getAdaptiveSizingPeriod() {
+        return adaptiveSizingPeriod;
+    }
+
+    /**
+     * Sets the period at which the adaptive sizing measures the load and
+     * adjusts the connection limit.
+     *
+     * @param adaptiveSizingPeriod long. Period in milliseconds.
+     */
+    public void setAdaptiveSizingPeriod(long adaptiveSizingPeriod) {
+        this.adaptiveSizingPeriod = Math.max(1, adaptiveSizingPeriod);
+        scheduleSizing();
+    }
+
+    /**
+     * Returns whether handing out connections is suspended.
+     *
+     * @return boolean
+     */
+    public boolean isSuspended() {
+        return suspension.get() != null;
+    }
+
+    /**
+     * Suspends handing out connections, e.g. while the database fails over.
+     * Requests wait until the pool is resumed or they time out, requests
+     * without a timeout fail with POOL_SUSPENDED. Connections in use are not
+     * affected. Suspends the sub-pools as well.
+     */
+    public void suspend() {
+        if (suspension.compareAndSet(null, new CompletableFuture<Void>())) {
+            updateAdmission();
+            logger.info("Connection pool suspended");
+        }
+        for (ConnectionPoolFactory pool : subPools.values()) {
+            pool.suspend();
+        }
+    }
+
+    /**
+     * Resumes handing out connections, serving the waiting requests.
+     */
+    public void resume() {
+        CompletableFuture<Void> resumed = suspension.getAndSet(null);
+        if (resumed != null) {
+            updateAdmission();
+            logger.info("Connection pool resumed");
+            resumed.complete(null);
+            //Serve the requests queued before the pool was suspended
+            bag.signalAll();
+        }
+        for (ConnectionPoolFactory pool : subPools.values()) {
+            pool.resume();
+        }
+    }
+
+    /**
+     * Replaces all connections, e.g. after the database failed over or its
+     * credentials changed. Idle connections are closed right away and
+     * connections in use when they are returned, new ones are opened in
+     * their place. Evicts the connections of the sub-pools as well.
+     */
+    public void softEvictConnections() {
+        logger.info("Evicting all connections");
+        for (PoolEntry e : bag.values()) {
+            e.evicted = true;
+            if (bag.reserve(e)) {
+                retire(e, true);
+            }
+        }
+        for (ConnectionPoolFactory pool : subPools.values()) {
+            pool.softEvictConnections();
+        }
+    }
+
+    /**
+     * Returns the name of this pool in the MBean server and the logs.
+     *
+     * @return String
+     */
+    public String getPoolName() {
+        return poolName;
+    }
+
+    /**
+     * Sets the name of this pool, e.g. to tell several pools apart in JMX.
+     * Defaults to pool-N.
+     *
+     * @param poolName String
+     */
+    public synchronized void setPoolName(String poolName) {
+        boolean registered = mbeanName != null;
+        if (registered) {
+            unregisterMBean();
+        }
+        this.poolName = poolName;
+        if (registered) {
+            registerMBean();
+        }
+    }
+
+    /**
+     * Returns whether this pool is registered with the platform MBean server.
+     *
+     * @return boolean
+     */
+    public synchronized boolean isRegisterMBean() {
+        return mbeanName != null;
+    }
+
+    /**
+     * Registers this pool with the platform MBean server as a PoolMXBean
+     * named com.example.database:type=ConnectionPool,name=poolName. It is
+     * unregistered on shutdown.
+     *
+     * @param registerMBean boolean. False to unregister it.
+     */
+    public void setRegisterMBean(boolean registerMBean) {
+        if (registerMBean) {
+            registerMBean();
+        } else {
+            unregisterMBean();
+        }
+    }
+
+    //Registers the PoolMXBean of this pool, logging failures
+    private synchronized void registerMBean() {
+        if (mbeanName != null || shutdown) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName("com.example.database:"
+                    + "type=ConnectionPool,name=" + ObjectName.quote(poolName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new PoolMonitor(this), name);
+            mbeanName = name;
+        } catch (JMException e) {
+            logger.warn("Failed to register MBean of pool " + poolName, e);
+        }
+    }
+
+    //Unregisters the PoolMXBean of this pool, logging failures
+    private synchronized void unregisterMBean() {
+        if (mbeanName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    mbeanName);
+        } catch (JMException e) {
+            logger.warn("Failed to unregister MBean of pool " + poolName, e);
+        }
+        mbeanName = null;
+    }
+
+    /**
+     * Returns the time the eager warm up of this pool took.
+     *
+     * @return long Time in milliseconds until all connections were opened,
+     * or -1 if lazy loaded or not finished yet.
+     */
+    public long getWarmupTime() {
+        return warmupTime;
+    }
+
+    /**
+     * Returns the number of queues the idle connections are spread over.
+     *
+     * @return int
+     */
+    public int getStripes() {
+        return bag.stripes();
+    }
+
+    /**
+     * Sets the number of queues the idle connections are spread over, 1 to
+     * keep them in a single queue. Worth raising when many threads on many
+     * cores take and return connections at a high rate, e.g. to the number of
+     * cores.
+     *
+     * @param stripes int. Rounded up to a power of two, between 1 and 64.
+     */
+    public void setStripes(int stripes) {
+        bag.setStripes(stripes);
+    }
+
+    /**
+     * Returns the time after which a waiting request is served before
+     * requests of higher priority.
+     *
+     * @return long Time in milliseconds.
+     */
+    public long getPriorityAgingTime() {
+        return TimeUnit.NANOSECONDS.toMillis(bag.getAgingTime());
+    }
+
+    /**
+     * Sets the time after which a request waiting for a connection is served
+     * before requests of higher priority, so that low priority requests are
+     * not starved by a steady stream of higher ones.
+     *
+     * @param priorityAgingTime long. Time in milliseconds, 0 to serve strictly
+     * by priority.
+     */
+    public void setPriorityAgingTime(long priorityAgingTime) {
+        bag.setAgingTime(TimeUnit.MILLISECONDS.toNanos(
+                Math.max(0, priorityAgingTime)));
+    }
+
+    /**
+     * Returns the number of connections kept for requests of the given
+     * priority and above.
+     *
+     * @param priority com.example.database.Priority
+     * @return int
+     */
+    public int getReservedConnections(Priority priority) {
+        return reservedConnections[priority.ordinal()];
+    }
+
+    /**
+     * Keeps a number of connections for requests of the given priority and
+     * above. Requests of lower priority wait while no more connections are
+     * left than are kept for higher priorities, counted against the
+     * connection limit, so that e.g. batch jobs cannot take the connections
+     * user requests need. The limit is checked without a lock and concurrent
+     * requests may exceed it briefly. Has no effect for the lowest priority.
+     *
+     * @param priority com.example.database.Priority
+     * @param reservedConnections int. At least 0.
+     */
+    public void setReservedConnections(Priority priority,
+            int reservedConnections) {
+        synchronized (this) {
+            int[] reserved = this.reservedConnections.clone();
+            reserved[priority.ordinal()] = Math.max(0, reservedConnections);
+            this.reservedConnections = reserved;
+            updateAdmission();
+        }
+        bag.signalAll();
+    }
+
+    /**
+     * Sets the quota of the callers which get connections with the given tag.
+     * The tag may hold up to maxInUse connections at the same time, further
+     * callers wait for one of the tag to be released and fail with
+     * QUOTA_REACHED if none is in time. Up to guaranteed connections are kept
+     * for the tag: other callers wait while no more connections are left
+     * than the tags with a guarantee do not use, counted against the
+     * connection limit. Quotas are checked without a lock, guarantees may be
+     * exceeded briefly by concurrent requests.
+     *
+     * @param tag String. The tag of the callers.
+     * @param guaranteed int. Connections kept for the tag, at most maxInUse.
+     * @param maxInUse int. Connections the tag may hold, 0 for no limit.
+     */
+    public void setQuota(String tag, int guaranteed, int maxInUse) {
+        synchronized (this) {
+            Bulkhead bulkhead = bulkheads.get(tag);
+            if (bulkhead == null) {
+                bulkheads.put(tag, new Bulkhead(tag, guaranteed, maxInUse));
+            } else {
+                bulkhead.set(guaranteed, maxInUse);
+            }
+            updateAdmission();
+        }
+        bag.signalAll();
+    }
+
+    /**
+     * Removes the quota of a tag. Its callers get connections like untagged
+     * callers afterwards.
+     *
+     * @param tag String
+     */
+    public void removeQuota(String tag) {
+        synchronized (this) {
+            if (bulkheads.remove(tag) == null) {
+                return;
+            }
+            updateAdmission();
+        }
+        bag.signalAll();
+    }
+
+    /**
+     * Returns the tags with a quota.
+     *
+     * @return Set<String>
+     */
+    public Set<String> getQuotaTags() {
+        return Collections.unmodifiableSet(bulkheads.keySet());
+    }
+
+    /**
+     * Returns the connections kept for a tag.
+     *
+     * @param tag String
+     * @return int 0 if the tag has no quota.
+     */
+    public int getQuotaGuaranteed(String tag) {
+        Bulkhead bulkhead = bulkheads.get(tag);
+        return bulkhead == null ? 0 : bulkhead.getGuaranteed();
+    }
+
+    /**
+     * Returns the connections a tag may hold.
+     *
+     * @param tag String
+     * @return int 0 if not limited.
+     */
+    public int getQuotaMaxInUse(String tag) {
+        Bulkhead bulkhead = bulkheads.get(tag);
+        return bulkhead == null ? 0 : bulkhead.getMaxInUse();
+    }
+
+    /**
+     * Returns the connections a tag holds, including requests getting one.
+     *
+     * @param tag String
+     * @return int
+     */
+    public int getQuotaInUse(String tag) {
+        Bulkhead bulkhead = bulkheads.get(tag);
+        return bulkhead == null ? 0 : bulkhead.inUse();
+    }
+
+    /**
+     * Returns the most connections a tag held at the same time.
+     *
+     * @param tag String
+     * @return int
+     */
+    public int getQuotaPeak(String tag) {
+        Bulkhead bulkhead = bulkheads.get(tag);
+        return bulkhead == null ? 0 : bulkhead.peak();
+    }
+
+    /**
+     * Returns the number of requests of a tag which timed out waiting for
+     * its quota.
+     *
+     * @param tag String
+     * @return long
+     */
+    public long getQuotaRejectedCount(String tag) {
+        Bulkhead bulkhead = bulkheads.get(tag);
+        return bulkhead == null ? 0 : bulkhead.rejections();
+    }
+
+    /**
+     * Recomputes the admission of requests from the reserved connections and
+     * the guarantees of the quotas. While the pool is suspended, no request
+     * is admitted and released connections are not handed to waiters.
+     * Waiters which may be admitted now are not woken up here: the callers
+     * signal them after releasing the lock, as a woken up waiter may complete
+     * an asynchronous request and run the stages of its caller.
+     */
+    private synchronized void updateAdmission() {
+        int[] reserved = reservedConnections;
+        //Rank 1 is the highest priority, which leaves nothing to others
+        int[] thresholds = new int[reserved.length + 1];
+        for (int i = 2; i < thresholds.length; i++) {
+            thresholds[i] = thresholds[i - 1] + reserved[i - 2];
+        }
+        List<Bulkhead> guaranteed = new ArrayList<Bulkhead>();
+        int sum = 0;
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            if (bulkhead.getGuaranteed() > 0) {
+                guaranteed.add(bulkhead);
+                sum += bulkhead.getGuaranteed();
+            }
+        }
+        if (sum > maxConnections) {
+            logger.warn("Quotas guarantee " + sum + " connections, more than"
+                    + " the " + maxConnections + " of the pool");
+        }
+        boolean any = thresholds[thresholds.length - 1] > 0
+                || !guaranteed.isEmpty();
+        guarantees = guaranteed.toArray(new Bulkhead[guaranteed.size()]);
+        admissionThresholds = any ? thresholds : null;
+        bag.setAdmission(any || isSuspended() ? this::highestAdmitted : null);
+    }
+
+    /**
+     * Returns the maximum number of database connections opened at the same
+     * time.
+     *
+     * @return int
+     */
+    public int getMaxConcurrentCreations() {
+        return creationPermits.limit();
+    }
+
+    /**
+     * Sets the maximum number of database connections opened at the same
+     * time, by callers or in the background. Further callers needing a new
+     * connection wait for one of the connects to finish.
+     *
+     * @param maxConcurrentCreations int. At least 1.
+     */
+    public void setMaxConcurrentCreations(int maxConcurrentCreations) {
+        int n = Math.max(1, maxConcurrentCreations);
+        creationPermits.resize(n);
+        //Resize in an order which keeps the core size below the maximum
+        if (n > creator.getMaximumPoolSize()) {
+            creator.setMaximumPoolSize(n);
+            creator.setCorePoolSize(n);
+        } else {
+            creator.setCorePoolSize(n);
+            creator.setMaximumPoolSize(n);
+        }
+    }
+
+    /**
+     * Returns the number of consecutive failed connects which open the
+     * circuit breaker.
+     *
+     * @return int 0 if disabled.
+     */
+    public int getConnectFailureThreshold() {
+        return breaker.getFailureThreshold();
+    }
+
+    /**
+     * Sets the number of consecutive failed connects which open the circuit
+     * breaker. While open, connects fail fast with CONNECTS_SUSPENDED.
+     *
+     * @param connectFailureThreshold int. 0 to disable the breaker.
+     */
+    public void setConnectFailureThreshold(int connectFailureThreshold) {
+        breaker.setFailureThreshold(connectFailureThreshold);
+    }
+
+    /**
+     * Returns the first backoff of the circuit breaker.
+     *
+     * @return long Backoff in milliseconds.
+     */
+    public long getConnectBackoff() {
+        return breaker.getInitialBackoff();
+    }
+
+    /**
+     * Sets the time connects fail fast once the circuit breaker opened. It
+     * doubles each time the probe connect fails, up to maxConnectBackoff,
+     * and is shortened by up to half at random.
+     *
+     * @param connectBackoff long. Backoff in milliseconds.
+     */
+    public void setConnectBackoff(long connectBackoff) {
+        breaker.setInitialBackoff(connectBackoff);
+    }
+
+    /**
+     * Returns the maximum backoff of the circuit breaker.
+     *
+     * @return long Backoff in milliseconds.
+     */
+    public long getMaxConnectBackoff() {
+        return breaker.getMaxBackoff();
+    }
+
+    /**
+     * Sets the maximum time connects fail fast before the next probe.
+     *
+     * @param maxConnectBackoff long. Backoff in milliseconds.
+     */
+    public void setMaxConnectBackoff(long maxConnectBackoff) {
+        breaker.setMaxBackoff(maxConnectBackoff);
+    }
+
+    /**
+     * Returns the state of the circuit breaker.
+     *
+     * @return String CLOSED while connecting, OPEN while failing connects
+     * fast and HALF_OPEN while probing.
+     */
+    public String getCircuitState() {
+        switch (breaker.state()) {
+            case CircuitBreaker.OPEN:
+                return "OPEN";
+            case CircuitBreaker.HALF_OPEN:
+                return "HALF_OPEN";
+            default:
+                return "CLOSED";
+        }
+    }
+
+    /**
+     * Returns the number of connects failed fast by the circuit breaker.
+     *
+     * @return long
+     */
+    public long getRejectedConnectCount() {
+        return breaker.rejections();
+    }
+
+    /**
+     * Prepares an acquired entry to be handed out.
+     *
+     * @param entry PoolEntry. An entry in use by the caller.
+     * @return java.sql.Connection The proxy connection of the entry.
+     * @throws SQLException
+     */
+    private Connection prepare(PoolEntry entry) throws SQLException {
+        ProxyConnection pc = entry.connection;
+        try {
+            if (pc.c == null || pc.c.isClosed()) {
+                pc.connect(getDbConnection(0));
+            }
+        } catch (SQLException e) {
+            //The entry is useless without a database connection, give up its
+            //slot so that another one can be created
+            removeEntry(entry);
+            throw e;
+        }
+        pc.closed = false;
+        activeConnections.increment();
+        entry.borrowedAt = System.nanoTime();
+        if (trackBorrows) {
+            recordBorrow(entry);
+        }
+        entry.lease();
+        if (minIdle > 0
+                && totalConnections.get() - activeConnections.sum() < minIdle) {
+            requestFill();
+        }
+        if (logger.isDebugEnabled()) {
+            debug("After getConnection() - free: " + free()
+                    + " in use: " + inUse());
+        }
+        return entry.connection;
+    }
+
+    /**
+     * Acquires an entry for an asynchronous request without blocking. Takes a
+     * free entry, creates a new one in the background if the pool is not
+     * full, or queues the request until one is handed over.
+     *
+     * @param future CompletableFuture. The request to complete.
+     * @param rank int. The rank of the request, see rank().
+     * @param deadline long. The deadline in terms of System.nanoTime(), 0 to
+     * fail immediately if the pool is exhausted.
+     * @param start long. System.nanoTime() when the request was made.
+     */
+    private void acquireAsync(CompletableFuture<Connection> future,
+            int rank, long deadline, long start) {
+        if (shutdown) {
+            future.completeExceptionally(
+                    new SQLException(Errors.POOL_SHUTDOWN));
+            return;
+        }
+        CompletableFuture<Void> resumed = suspension.get();
+        if (resumed != null) {
+            awaitResumeAsync(future, rank, deadline, start, resumed);
+            return;
+        }
+        boolean admitted = admitted(rank);
+        PoolEntry entry = admitted ? bag.borrow() : null;
+        if (entry != null) {
+            checkOutAsync(future, entry, rank, deadline, start, false);
+            return;
+        }
+        if (admitted && claimSlot()) {
+            createAsync(future, start);
+            return;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (deadline == 0 || remaining <= 0) {
+            future.completeExceptionally(timedOut(deadline == 0
+                    ? Errors.MAX_CONNECTION_REACHED : Errors.CONNECTION_TIMEOUT));
+            return;
+        }
+        AsyncWaiter w = new AsyncWaiter(future, rank, deadline, start);
+        bag.enqueue(w);
+        //Check again now that the request is queued, a connection may have
+        //been returned or removed meanwhile
+        admitted = admitted(rank);
+        entry = admitted ? bag.borrow() : null;
+        if (entry != null) {
+            if (bag.cancel(w)) {
+                checkOutAsync(future, entry, rank, deadline, start, false);
+            } else {
+                bag.requite(entry);
+            }
+            return;
+        }
+        if (admitted && claimSlot()) {
+            if (bag.cancel(w)) {
+                createAsync(future, start);
+            } else {
+                releaseSlot();
+            }
+            return;
+        }
+        final ScheduledFuture<?> timeoutTask;
+        try {
+            timeoutTask = scheduler.schedule(() -> {
+                if (bag.cancel(w)) {
+                    future.completeExceptionally(
+                            timedOut(Errors.CONNECTION_TIMEOUT));
+                }
+            }, remaining, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            //Shut down meanwhile
+            if (bag.cancel(w)) {
+                future.completeExceptionally(
+                        new SQLException(Errors.POOL_SHUTDOWN));
+            }
+            return;
+        }
+        future.whenComplete((c, t) -> {
+            timeoutTask.cancel(false);
+            //Withdraw the request if cancelled by the caller
+            bag.cancel(w);
+        });
+    }
+
+    /**
+     * Retries an asynchronous request once a suspended pool is resumed, or
+     * fails it at its deadline.
+     *
+     * @param future CompletableFuture. The request to complete.
+     * @param rank int. The rank of the request, see rank().
+     * @param deadline long. The deadline in terms of System.nanoTime(), 0 to
+     * fail immediately.
+     * @param start long. System.nanoTime() when the request was made.
+     * @param resumed CompletableFuture. Completed on resume.
+     */
+    private void awaitResumeAsync(CompletableFuture<Connection> future,
+            int rank, long deadline, long start,
+            CompletableFuture<Void> resumed) {
+        long remaining = deadline - System.nanoTime();
+        if (deadline == 0 || remaining <= 0) {
+            future.completeExceptionally(timedOut(Errors.POOL_SUSPENDED));
+            return;
+        }
+        final ScheduledFuture<?> timeoutTask;
+        try {
+            timeoutTask = scheduler.schedule(() -> {
+                SQLException e = new SQLException(Errors.POOL_SUSPENDED);
+                if (future.completeExceptionally(e)) {
+                    timeouts.increment();
+                }
+            }, remaining, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            //Shut down meanwhile
+            future.completeExceptionally(
+                    new SQLException(Errors.POOL_SHUTDOWN));
+            return;
+        }
+        resumed.thenRun(() -> {
+            timeoutTask.cancel(false);
+            if (!future.isDone()) {
+                acquireAsync(future, rank, deadline, start);
+            }
+        });
+    }
+
+    /**
+     * Creates a new entry for an asynchronous request in the background. The
+     * caller must have reserved a slot.
+     *
+     * @param future CompletableFuture. The request to complete.
+     * @param start long. System.nanoTime() when the request was made.
+     */
+    private void createAsync(CompletableFuture<Connection> future,
+            long start) {
+        try {
+            creator.execute(new AsyncTask(future, null, () -> {
+                try {
+                    complete(future, createEntry(0), start);
+                } catch (SQLException e) {
+                    future.completeExceptionally(e);
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            releaseSlot();
+            future.completeExceptionally(
+                    new SQLException(Errors.FAIL_CONNECTION, e));
+        }
+    }
+
+    /**
+     * Checks out an entry for an asynchronous request without blocking the
+     * calling thread. An entry which has to be validated or reconnected is
+     * checked on the async executor, or on the creator threads if there is
+     * none. The request is retried if the entry is retired.
+     *
+     * @param future CompletableFuture. The request to complete.
+     * @param entry PoolEntry. An entry in use by the caller.
+     * @param rank int. The rank of the request, see rank().
+     * @param deadline long. The deadline in terms of System.nanoTime(), 0 to
+     * fail immediately.
+     * @param start long. System.nanoTime() when the request was made.
+     * @param blocking boolean. True if the calling thread may block.
+     */
+    private void checkOutAsync(final CompletableFuture<Connection> future,
+            final PoolEntry entry, final int rank, final long deadline,
+            final long start, boolean blocking) {
+        Runnable task = () -> {
+            PoolEntry e;
+            try {
+                e = checkOut(entry, deadline);
+            } catch (SQLException x) {
+                future.completeExceptionally(x);
+                return;
+            }
+            if (e != null) {
+                complete(future, e, start);
+            } else if (!future.isDone()) {
+                acquireAsync(future, rank, deadline, start);
+            }
+        };
+        if (blocking || (!entry.evicted && entry.connection.c != null
+                && System.nanoTime() - entry.lastAccessed
+                <= validationInterval)) {
+            task.run();
+            return;
+        }
+        Executor executor = asyncExecutor;
+        try {
+            if (executor != null) {
+                executor.execute(task);
+            } else {
+                creator.execute(new AsyncTask(future, entry, task));
+            }
+        } catch (RejectedExecutionException e) {
+            bag.requite(entry);
+            future.completeExceptionally(
+                    new SQLException(Errors.FAIL_CONNECTION, e));
+        }
+    }
+
+    /**
+     * Completes an asynchronous request with an acquired entry. The entry is
+     * returned to the pool if the request has been cancelled meanwhile.
+     *
+     * @param future CompletableFuture. The request to complete.
+     * @param entry PoolEntry. An entry in use by the caller.
+     * @param start long. System.nanoTime() when the request was made.
+     */
+    private void complete(CompletableFuture<Connection> future,
+            PoolEntry entry, long start) {
+        Connection c;
+        try {
+            c = prepare(entry);
+        } catch (SQLException e) {
+            future.completeExceptionally(e);
+            return;
+        }
+        acquireTime.record(System.nanoTime() - start);
+        if (!future.complete(c)) {
+            try {
+                releaseConnection(c);
+            } catch (SQLException e) {
+                logger.warn("Failed to release connection!", e);
+            }
+        }
+    }
+
+    /**
+     * Acquires an entry for the caller. Takes a free entry or creates a new
+     * one if the pool is not full, otherwise waits for one to be handed over.
+     *
+     * @param rank int. The rank of the request, see rank().
+     * @param timeout long. Time to wait in nanoseconds.
+     * @return PoolEntry An entry in use by the caller.
+     * @throws SQLException if timed out or interrupted.
+     */
+    private PoolEntry acquire(int rank, long timeout)
+            throws SQLException {
+        long deadline = timeout <= 0 ? 0 : System.nanoTime() + timeout;
+        CompletableFuture<Void> resumed = suspension.get();
+        if (resumed != null) {
+            awaitResume(resumed, deadline);
+        }
+        if (shutdown) {
+            throw new SQLException(Errors.POOL_SHUTDOWN);
+        }
+        PoolEntry entry = tryAcquire(rank, deadline);
+        if (entry != null) {
+            return entry;
+        }
+        if (deadline == 0) {
+            throw timedOut(Errors.MAX_CONNECTION_REACHED);
+        }
+        for (;;) {
+            ConnectionBag.Waiter w = bag.enqueue(rank);
+            //Check again now that this thread is queued, a connection may
+            //have been returned or removed meanwhile
+            try {
+                entry = tryAcquire(rank, deadline);
+            } catch (SQLException e) {
+                bag.withdraw(w);
+                throw e;
+            }
+            if (entry != null) {
+                bag.withdraw(w);
+                return entry;
+            }
+            try {
+                entry = bag.await(w, deadline);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException(Errors.INTERRUPTED, e);
+            }
+            if (entry != null && (entry = checkOut(entry, deadline)) != null) {
+                return entry;
+            }
+            //Woken up without a usable connection, try again unless timed
+            //out
+            if (shutdown) {
+                throw new SQLException(Errors.POOL_SHUTDOWN);
+            }
+            if (deadline - System.nanoTime() <= 0) {
+                throw timedOut(Errors.CONNECTION_TIMEOUT);
+            }
+        }
+    }
+
+    /**
+     * Waits for a suspended pool to be resumed.
+     *
+     * @param resumed CompletableFuture. Completed on resume.
+     * @param deadline long. The deadline in terms of System.nanoTime(), 0 to
+     * fail immediately.
+     * @throws SQLException if timed out or interrupted.
+     */
+    private void awaitResume(CompletableFuture<Void> resumed, long deadline)
+            throws SQLException {
+        if (deadline == 0) {
+            throw timedOut(Errors.POOL_SUSPENDED);
+        }
+        try {
+            resumed.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw timedOut(Errors.POOL_SUSPENDED);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(Errors.INTERRUPTED, e);
+        } catch (ExecutionException e) {
+            //Never completed exceptionally
+            throw new SQLException(e.getCause());
+        }
+    }
+
+    /**
+     * Takes a free entry from the bag, see checkOut().
+     *
+     * @param deadline long. The deadline in terms of System.nanoTime() to
+     * wait for a creation permit, 0 to wait as long as it takes.
+     * @return PoolEntry An entry in use by the caller, or null.
+     * @throws SQLException
+     */
+    private PoolEntry borrow(long deadline) throws SQLException {
+        PoolEntry entry;
+        while ((entry = bag.borrow()) != null) {
+            if ((entry = checkOut(entry, deadline)) != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks an entry taken from the bag or handed over by a releasing
+     * thread before it is handed out. Entries idle for longer than the
+     * validation interval are validated first. An entry evicted meanwhile or
+     * failing validation is retired and the caller opens a new connection
+     * in its slot, so that it does not lose the slot to another thread.
+     *
+     * @param entry PoolEntry. An entry in use by the caller.
+     * @param deadline long. The deadline in terms of System.nanoTime() to
+     * wait for a creation permit, 0 to wait as long as it takes.
+     * @return PoolEntry The entry or its replacement, in use by the caller,
+     * or null if the entry was retired without a replacement.
+     * @throws SQLException if the replacement could not be opened.
+     */
+    private PoolEntry checkOut(PoolEntry entry, long deadline)
+            throws SQLException {
+        if (!entry.evicted && (System.nanoTime() - entry.lastAccessed
+                <= validationInterval || validate(entry))) {
+            return entry;
+        }
+        if (!discard(entry)) {
+            return null;
+        }
+        if (shutdown || totalConnections.get() > connectionLimit) {
+            //The pool shrank meanwhile
+            releaseSlot();
+            return null;
+        }
+        return createEntry(deadline);
+    }
+
+    /**
+     * Validates the database connection of an entry held by the caller.
+     *
+     * @param entry PoolEntry
+     * @return boolean True if the connection is usable.
+     */
+    private boolean validate(PoolEntry entry) {
+        Connection c = entry.connection.c;
+        if (c == null) {
+            //Reconnected when handed out
+            return true;
+        }
+        long start = System.nanoTime();
+        boolean valid;
+        try {
+            valid = validator.isValid(c, (int) TimeUnit.MILLISECONDS.toSeconds(
+                    validationTimeout + 999));
+        } catch (SQLException e) {
+            valid = false;
+        } catch (RuntimeException e) {
+            valid = false;
+        }
+        validations.increment();
+        validationTime.add(System.nanoTime() - start);
+        if (!valid) {
+            validationFailures.increment();
+            logger.warn("Connection " + c + " failed validation, retiring it");
+        } else {
+            entry.lastAccessed = System.nanoTime();
+        }
+        return valid;
+    }
+
+    /**
+     * Takes a free entry or creates a new one if the pool is not full and
+     * the request is admitted.
+     *
+     * @param rank int. The rank of the request, see rank().
+     * @param deadline long. The deadline in terms of System.nanoTime() to
+     * wait for a creation permit, 0 to wait as long as it takes.
+     * @return PoolEntry An entry in use by the caller, or null.
+     * @throws SQLException
+     */
+    private PoolEntry tryAcquire(int rank, long deadline)
+            throws SQLException {
+        if (!admitted(rank)) {
+            return null;
+        }
+        PoolEntry entry = borrow(deadline);
+        if (entry == null && claimSlot()) {
+            entry = createEntry(deadline);
+        }
+        return entry;
+    }
+
+    /**
+     * Initializes this pool. Registers the driver, initializes the pool arrays
+     * and caches the connections if not lazy loaded. Shuts the pool down if
+     * the connections fail.
+     *
+     * @throws SQLException
+     */
+    private void init() throws SQLException {
+        //Register the driver
+        try {
+            DriverManager.registerDriver(
+                    (Driver) Class.forName(driver).newInstance());
+        } catch (Throwable t) {
+            logger.error(Errors.FAIL_REGISTER_DRIVER, t);
+            throw new SQLException(Errors.FAIL_REGISTER_DRIVER, t);
+        }
+        //Create the bag
+        bag = new ConnectionBag(Priority.values().length + 1);
+        bag.setAgingTime(TimeUnit.MILLISECONDS.toNanos(
+                DEFAULT_PRIORITY_AGING_TIME));
+        //Create the background executors, their threads are started when
+        //needed and stop when idle
+        int n = creationPermits.limit();
+        creator = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new PoolThreadFactory("creator"));
+        creator.allowCoreThreadTimeOut(true);
+        scheduler = new ScheduledThreadPoolExecutor(1,
+                new PoolThreadFactory("scheduler"));
+        scheduler.setKeepAliveTime(60, TimeUnit.SECONDS);
+        scheduler.allowCoreThreadTimeOut(true);
+        scheduler.setRemoveOnCancelPolicy(true);
+        try {
+            scheduleHousekeeping();
+            //Load the connections if not lazy loaded
+            if (!lazyLoad) {
+                warmUp();
+            }
+        } catch (SQLException | RuntimeException e) {
+            //Stop the background threads of the pool which is not returned
+            shutdown();
+            throw e;
+        }
+    }
+
+    /**
+     * Schedules the housekeeper at the current period, replacing the previous
+     * schedule.
+     */
+    private void scheduleHousekeeping() {
+        ScheduledFuture<?> previous = housekeeping;
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        if (!shutdown) {
+            housekeeping = scheduler.scheduleWithFixedDelay(this::houseKeep,
+                    housekeepingPeriod, housekeepingPeriod,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Schedules the leak detection at half the smaller of the leak detection
+     * threshold and the abandoned timeout, replacing the previous schedule.
+     */
+    private void scheduleLeakDetection() {
+        ScheduledFuture<?> previous = leakDetection;
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        long threshold = leakDetectionThreshold;
+        long timeout = abandonedTimeout;
+        trackBorrows = threshold > 0 || timeout > 0;
+        if (trackBorrows && !shutdown) {
+            long period = Math.max(MIN_LEAK_DETECTION_PERIOD, Math.min(
+                    threshold > 0 ? threshold : Long.MAX_VALUE,
+                    timeout > 0 ? timeout : Long.MAX_VALUE) / 2);
+            leakDetection = scheduler.scheduleWithFixedDelay(this::detectLeaks,
+                    period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Schedules the adaptive sizing at the current period with a new
+     * controller, replacing the previous schedule.
+     */
+    private synchronized void scheduleSizing() {
+        ScheduledFuture<?> previous = sizing;
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        sizing = null;
+        if (adaptiveSizing && !shutdown) {
+            sizing = scheduler.scheduleWithFixedDelay(
+                    new PoolSizeController(this), adaptiveSizingPeriod,
+                    adaptiveSizingPeriod, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Records who borrowed an entry, for the leak detection.
+     *
+     * @param entry PoolEntry. An entry being handed out.
+     */
+    private void recordBorrow(PoolEntry entry) {
+        Thread t = Thread.currentThread();
+        entry.borrower = t;
+        int sampling = leakDetectionSampling;
+        entry.borrowSite = sampling == 1
+                || ThreadLocalRandom.current().nextInt(sampling) == 0
+                ? new Exception("Connection borrowed by " + t.getName())
+                : null;
+    }
+
+    /**
+     * Reports the connections held longer than the leak detection threshold
+     * and takes back those held longer than the abandoned timeout. Runs on
+     * the scheduler thread.
+     */
+    private void detectLeaks() {
+        try {
+            long now = System.nanoTime();
+            long threshold = TimeUnit.MILLISECONDS.toNanos(
+                    leakDetectionThreshold);
+            long timeout = TimeUnit.MILLISECONDS.toNanos(abandonedTimeout);
+            for (PoolEntry e : bag.values(PoolEntry.STATE_IN_USE)) {
+                Thread borrower = e.borrower;
+                if (borrower == null) {
+                    //Borrowed before tracking was enabled, or just returned
+                    continue;
+                }
+                long held = now - e.borrowedAt;
+                if (timeout > 0 && held > timeout && e.endLease()) {
+                    abandoned.increment();
+                    logger.warn("Connection " + e.connection.c + " abandoned"
+                            + " by " + borrower.getName() + " after "
+                            + TimeUnit.NANOSECONDS.toMillis(held)
+                            + " ms, closing it", e.borrowSite);
+                    e.connection.closed = true;
+                    activeConnections.decrement();
+                    releaseQuota(e);
+                    e.borrower = null;
+                    e.borrowSite = null;
+                    retire(e, true);
+                } else if (threshold > 0 && held > threshold
+                        && !e.leakReported) {
+                    e.leakReported = true;
+                    leaks.increment();
+                    logger.warn("Connection " + e.connection.c + " held by "
+                            + borrower.getName() + " for "
+                            + TimeUnit.NANOSECONDS.toMillis(held)
+                            + " ms, possible leak", e.borrowSite);
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error("Leak detection failed!", e);
+        }
+    }
+
+    /**
+     * Maintains the idle connections. Closes the least recently used idle
+     * connections above maxIdle and opens new ones below minIdle. Runs on the
+     * scheduler thread.
+     */
+    private void houseKeep() {
+        try {
+            long now = System.nanoTime();
+            long lifetime = TimeUnit.MILLISECONDS.toNanos(maxLifetime);
+            long timeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+            //Retire the connections which outlived their lifetime, replacing
+            //them. Connections in use are retired when they are returned.
+            if (lifetime > 0) {
+                for (PoolEntry e : bag.values()) {
+                    if (!e.evicted
+                            && e.isExpired(lifetime, MAX_LIFETIME_JITTER, now)) {
+                        e.evicted = true;
+                        if (bag.reserve(e)) {
+                            retire(e, true);
+                        }
+                    }
+                }
+            }
+            //Validate the connections idle for longer than the validation
+            //interval
+            if (backgroundValidation) {
+                for (PoolEntry e : bag.values(PoolEntry.STATE_FREE)) {
+                    if (now - e.lastAccessed > validationInterval
+                            && bag.reserve(e)) {
+                        validateIdle(e);
+                    }
+                }
+            }
+            List<PoolEntry> idle = bag.values(PoolEntry.STATE_FREE);
+            Collections.sort(idle, LEAST_RECENTLY_USED);
+            //Retire the connections idle for too long, down to minIdle
+            if (timeout > 0) {
+                int excess = idle.size() - minIdle;
+                for (Iterator<PoolEntry> i = idle.iterator();
+                        i.hasNext() && excess > 0;) {
+                    PoolEntry e = i.next();
+                    if (now - e.lastAccessed < timeout) {
+                        break;
+                    }
+                    if (bag.reserve(e)) {
+                        retire(e, false);
+                        i.remove();
+                        excess--;
+                    }
+                }
+            }
+            int excess = Math.max(idle.size() - Math.max(maxIdle, minIdle),
+                    totalConnections.get() - connectionLimit);
+            //Retire the least recently used connections above maxIdle, or
+            //above the connection limit if the pool was resized
+            for (Iterator<PoolEntry> i = idle.iterator();
+                    i.hasNext() && excess > 0;) {
+                PoolEntry e = i.next();
+                if (bag.reserve(e)) {
+                    retire(e, false);
+                    excess--;
+                }
+            }
+            fill();
+        } catch (Throwable t) {
+            logger.error("Housekeeping failed!", t);
+        }
+    }
+
+    /**
+     * Validates a reserved idle entry on the creator threads, so that a slow
+     * database does not hold up the timeouts and the leak detection on the
+     * scheduler thread. The entry is freed again if valid and retired
+     * otherwise.
+     *
+     * @param entry PoolEntry
+     */
+    private void validateIdle(final PoolEntry entry) {
+        try {
+            creator.execute(() -> {
+                if (validate(entry)) {
+                    bag.unreserve(entry);
+                } else {
+                    retire(entry, true);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            bag.unreserve(entry);
+        }
+    }
+
+    /**
+     * Asks the housekeeper to open connections up to minIdle as soon as
+     * possible.
+     */
+    private void requestFill() {
+        if (minIdle > 0 && !shutdown && fillRequested.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(() -> {
+                    fillRequested.set(false);
+                    fill();
+                });
+            } catch (RejectedExecutionException e) {
+                fillRequested.set(false);
+            }
+        }
+    }
+
+    /**
+     * Opens connections in the background until minIdle connections are idle
+     * or being opened, or the pool is full.
+     */
+    private void fill() {
+        int missing = minIdle - bag.count(PoolEntry.STATE_FREE)
+                - pendingFills.get();
+        while (missing-- > 0 && !shutdown && reserveSlot()) {
+            pendingFills.incrementAndGet();
+            try {
+                creator.execute(() -> {
+                    try {
+                        addIdle(createEntry(0));
+                    } catch (SQLException e) {
+                        //Logged when the connect failed, try again on the
+                        //next run
+                    } finally {
+                        pendingFills.decrementAndGet();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                pendingFills.decrementAndGet();
+                releaseSlot();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Opens the connections of this pool in parallel on the creator threads.
+     * Waits until warmupMinimum of them are open, the rest are opened in the
+     * background.
+     *
+     * @throws SQLException if a connection failed before the minimum was
+     * reached.
+     */
+    private void warmUp() throws SQLException {
+        final long start = System.nanoTime();
+        int n = 0;
+        while (n < maxConnections && reserveSlot()) {
+            n++;
+        }
+        final int minimum = Math.max(0, Math.min(warmupMinimum, n));
+        final CountDownLatch ready = new CountDownLatch(minimum);
+        final CountDownLatch done = new CountDownLatch(n);
+        final AtomicInteger remaining = new AtomicInteger(n);
+        final AtomicReference<SQLException> failure =
+                new AtomicReference<SQLException>();
+        for (int i = 0; i < n; i++) {
+            creator.execute(() -> {
+                try {
+                    addIdle(createEntry(0));
+                    ready.countDown();
+                } catch (SQLException e) {
+                    failure.compareAndSet(null, e);
+                    //Stop waiting, the caller rethrows the failure
+                    for (int j = 0; j < minimum; j++) {
+                        ready.countDown();
+                    }
+                } finally {
+                    done.countDown();
+                    if (remaining.decrementAndGet() == 0) {
+                        warmupTime = TimeUnit.NANOSECONDS.toMillis(
+                                System.nanoTime() - start);
+                        logger.info("Connection pool warmed up with "
+                                + totalConnections.get() + " connections in "
+                                + warmupTime + " ms");
+                    }
+                }
+            });
+        }
+        try {
+            ready.await();
+            if (failure.get() != null) {
+                //Let the other connects finish and close what was opened
+                done.await();
+                for (PoolEntry e : bag.values(PoolEntry.STATE_FREE)) {
+                    if (bag.reserve(e)) {
+                        removeEntry(e);
+                    }
+                }
+                throw failure.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(Errors.INTERRUPTED, e);
+        }
+        debug("Warm up of " + minimum + " connections took "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                + " ms");
+    }
+
+    /**
+     * Reserves a slot for a new connection if the pool is not full.
+     *
+     * @return boolean False if maximum number of connections is reached.
+     */
+    private boolean reserveSlot() {
+        for (;;) {
+            int n = totalConnections.get();
+            if (n >= connectionLimit) {
+                return false;
+            }
+            if (totalConnections.compareAndSet(n, n + 1)) {
+                break;
+            }
+        }
+        //The sub-pools share the limit of the pool creating them
+        int limit = parent != null ? parent.connectionLimit : connectionLimit;
+        for (;;) {
+            int n = slots.get();
+            if (n >= limit) {
+                totalConnections.decrementAndGet();
+                return false;
+            }
+            if (slots.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Reserves a slot for a new connection of a caller. If the pool shares
+     * its limit with sub-pools, an idle connection of another of them is
+     * retired to take over its slot.
+     *
+     * @return boolean False if maximum number of connections is reached.
+     */
+    private boolean claimSlot() {
+        if (reserveSlot()) {
+            return true;
+        }
+        ConnectionPoolFactory root = parent != null ? parent : this;
+        if (root.subPools.isEmpty()
+                || totalConnections.get() >= connectionLimit) {
+            return false;
+        }
+        if (root != this && root.retireIdle()) {
+            return reserveSlot();
+        }
+        for (ConnectionPoolFactory pool : root.subPools.values()) {
+            if (pool != this && pool.retireIdle()) {
+                return reserveSlot();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Retires an idle connection, giving up its slot.
+     *
+     * @return boolean False if there is none.
+     */
+    private boolean retireIdle() {
+        for (PoolEntry e : bag.values(PoolEntry.STATE_FREE)) {
+            if (bag.reserve(e)) {
+                retire(e, false);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the rank of requests of the given priority. Waiting requests
+     * are served by rank: first those within the guaranteed connections of
+     * their quota, then those of each priority.
+     *
+     * @param priority Priority
+     * @return int
+     */
+    private static int rank(Priority priority) {
+        return priority.ordinal() + 1;
+    }
+
+    /**
+     * Returns whether a request of the given rank may take a connection,
+     * i.e. whether more connections are left than are reserved for higher
+     * priorities and guaranteed to quotas.
+     *
+     * @param rank int
+     * @return boolean
+     */
+    private boolean admitted(int rank) {
+        if (suspension.get() != null) {
+            return false;
+        }
+        int[] thresholds = admissionThresholds;
+        if (thresholds == null || rank == GUARANTEED) {
+            return true;
+        }
+        int reserved = thresholds[rank] + unusedGuarantees();
+        return reserved == 0
+                || connectionLimit - activeConnections.sum() > reserved;
+    }
+
+    /**
+     * Returns the highest rank which may take a connection, -1 while the pool
+     * is suspended.
+     *
+     * @return int
+     */
+    private int highestAdmitted() {
+        if (suspension.get() != null) {
+            return -1;
+        }
+        int[] thresholds = admissionThresholds;
+        int highest = Priority.values().length;
+        if (thresholds == null) {
+            return highest;
+        }
+        int unused = unusedGuarantees();
+        long free = connectionLimit - activeConnections.sum();
+        while (highest > GUARANTEED && thresholds[highest] + unused > 0
+                && free <= thresholds[highest] + unused) {
+            highest--;
+        }
+        return highest;
+    }
+
+    //Returns the guaranteed connections the quotas do not use
+    private int unusedGuarantees() {
+        int n = 0;
+        for (Bulkhead bulkhead : guarantees) {
+            n += bulkhead.unused();
+        }
+        return n;
+    }
+
+    //Gives back the quota a returned connection was counted against
+    private static void releaseQuota(PoolEntry entry) {
+        Bulkhead bulkhead = entry.bulkhead;
+        if (bulkhead != null) {
+            entry.bulkhead = null;
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Gives up a reserved slot and wakes up a waiter to use it.
+     */
+    private void releaseSlot() {
+        totalConnections.decrementAndGet();
+        slots.decrementAndGet();
+        bag.signal();
+        signalShared();
+    }
+
+    /**
+     * Wakes up a waiter of each other pool sharing the connection limit of
+     * this one, which may take over a free slot or the slot of an idle
+     * connection.
+     */
+    private void signalShared() {
+        ConnectionPoolFactory root = parent != null ? parent : this;
+        if (root.subPools.isEmpty()) {
+            return;
+        }
+        if (root != this) {
+            root.bag.signal();
+        }
+        for (ConnectionPoolFactory pool : root.subPools.values()) {
+            if (pool != this) {
+                pool.bag.signal();
+            }
+        }
+    }
+
+    /**
+     * Creates a new entry in use by the caller and adds it to the bag. The
+     * caller must have reserved a slot, which is given up on failure.
+     *
+     * @param deadline long. The deadline in terms of System.nanoTime() to
+     * wait for a creation permit, 0 to wait as long as it takes.
+     * @return PoolEntry
+     * @throws SQLException
+     */
+    private PoolEntry createEntry(long deadline) throws SQLException {
+        ProxyConnection p;
+        try {
+            p = getProxyConnection(deadline);
+        } catch (SQLException e) {
+            releaseSlot();
+            throw e;
+        }
+        PoolEntry entry = new PoolEntry(p);
+        bag.add(entry);
+        return entry;
+    }
+
+    /**
+     * Makes a new entry opened in the background available, or closes it if
+     * the pool was shut down meanwhile.
+     *
+     * @param entry PoolEntry. A new entry in use by the caller.
+     */
+    private void addIdle(PoolEntry entry) {
+        if (shutdown) {
+            removeEntry(entry);
+        } else {
+            bag.requite(entry);
+        }
+    }
+
+    /**
+     * Removes an entry in use or reserved from the bag and closes its database
+     * connection in the background. The caller takes over its slot.
+     *
+     * @param entry PoolEntry
+     * @return boolean False if the entry had been removed already.
+     */
+    private boolean discard(PoolEntry entry) {
+        if (!bag.remove(entry)) {
+            return false;
+        }
+        entry.connection.closed = true;
+        final Connection c = entry.connection.c;
+        logger.debug("Retiring connection " + c);
+        try {
+            creator.execute(() -> closeConnection(c));
+        } catch (RejectedExecutionException e) {
+            closeConnection(c);
+        }
+        return true;
+    }
+
+    /**
+     * Retires an entry in use or reserved. Removes it from the bag and closes
+     * its database connection in the background.
+     *
+     * @param entry PoolEntry
+     * @param replace boolean. True to open a new connection in its place.
+     */
+    private void retire(PoolEntry entry, boolean replace) {
+        if (!discard(entry)) {
+            return;
+        }
+        if (replace && !shutdown && totalConnections.get() <= connectionLimit) {
+            //Keep the slot for the replacement
+            try {
+                creator.execute(() -> {
+                    try {
+                        addIdle(createEntry(0));
+                    } catch (SQLException e) {
+                        //Logged when the connect failed
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                //Give up the slot below
+            }
+        }
+        releaseSlot();
+    }
+
+    //Closes a database connection, logging failures
+    private void closeConnection(Connection c) {
+        try {
+            if (c != null) {
+                c.close();
+            }
+        } catch (SQLException e) {
+            logger.warn("Failed to close connection!", e);
+        }
+    }
+
+    /**
+     * Removes an entry in use or reserved from the bag, closes its database connection
+     * and gives up its slot.
+     *
+     * @param entry PoolEntry
+     */
+    private void removeEntry(PoolEntry entry) {
+        if (bag.remove(entry)) {
+            releaseSlot();
+            entry.connection.closed = true;
+            closeConnection(entry.connection.c);
+        }
+    }
+
+    /**
+     * Returns a proxy connection maintained by this pool.
+     *
+     * @param deadline long. The deadline in terms of System.nanoTime() to
+     * wait for a creation permit, 0 to wait as long as it takes.
+     * @return c java.sql.Connection
+     * @throws SQLException
+     */
+    private ProxyConnection getProxyConnection(long deadline) throws SQLException {
+        try {
+            Connection c = getDbConnection(deadline);
+            try {
+                return new ProxyConnection(c, this);
+            } catch (SQLException e) {
+                closeConnection(c);
+                throw e;
+            }
+        } catch (Throwable t) {
+            if (t instanceof SQLException) {
+                throw (SQLException) t;
+            } else {
+                logger.error(Errors.FAIL_CONNECTION, t);
+                throw new SQLException(Errors.FAIL_CONNECTION, t);
+            }
+        }
+    }
+
+    /**
+     * Returns an actual database connection from the provided database
+     * properties. Holds one of the creation permits while connecting, no lock
+     * is held.
+     *
+     * @param deadline long. The deadline in terms of System.nanoTime() to
+     * wait for a creation permit, 0 to wait as long as it takes.
+     * @return c java.sql.Connection
+     * @throws SQLException
+     */
+    private Connection getDbConnection(long deadline) throws SQLException {
+        return getDbConnection(username, password, deadline);
+    }
+
+    /**
+     * Returns an actual database connection opened with the given
+     * credentials. Holds one of the creation permits while connecting and
+     * fails fast while the circuit breaker is open.
+     *
+     * @param username String. The database user.
+     * @param password String. The database password.
+     * @param deadline long. The deadline in terms of System.nanoTime() to
+     * wait for a creation permit, 0 to wait as long as it takes.
+     * @return c java.sql.Connection
+     * @throws SQLException
+     */
+    private Connection getDbConnection(String username, String password,
+            long deadline) throws SQLException {
+        try {
+            if (deadline == 0) {
+                creationPermits.acquire();
+            } else if (!creationPermits.tryAcquire(
+                    deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                throw timedOut(Errors.CONNECTION_TIMEOUT);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(Errors.INTERRUPTED, e);
+        }
+        try {
+            if (!breaker.tryAcquire()) {
+                throw new SQLException(Errors.CONNECTS_SUSPENDED);
+            }
+            long start = System.nanoTime();
+            Connection c;
+            try {
+                c = DriverManager.getConnection(url, username, password);
+            } catch (Throwable t) {
+                //Log the stack once, not for every failure in a row
+                if (breaker.failure() == 1) {
+                    logger.error(Errors.FAIL_CONNECTION, t);
+                } else {
+                    logger.warn(Errors.FAIL_CONNECTION + " " + t);
+                }
+                throw new SQLException(Errors.FAIL_CONNECTION, t);
+            }
+            breaker.success();
+            creationTime.record(System.nanoTime() - start);
+            return c;
+        } finally {
+            creationPermits.release();
+        }
+    }
+
+    //Counts a request which found no connection in time
+    private SQLException timedOut(String message) {
+        timeouts.increment();
+        return new SQLException(message);
+    }
+
+    /**
+     * Returns the number of free connections. Scans the pool, used for unit
+     * testing.
+     * 
+     * @return int Free connections.
+     */
+    int free() {
+        return bag.count(PoolEntry.STATE_FREE);
+    }
+
+    /**
+     * Returns the number of connections in use. Scans the pool, used for unit
+     * testing.
+     *
+     * @return int Connections in use.
+     */
+    int inUse() {
+        return bag.count(PoolEntry.STATE_IN_USE);
+    }
+
+    /**
+     * A utility method for unit testing.
+     *
+     * @throws SQLException
+     */
+    void releaseAll() throws SQLException {
+        for (PoolEntry e : bag.values(PoolEntry.STATE_IN_USE)) {
+            releaseConnection(e.connection);
+        }
+    }
+
+    //Utility method for debug
+    private void debug(String msg) {
+        if (logger.isDebugEnabled()) {
+            logger.debug(msg);
+        }
+    }
+
+    /**
+     * A waiter of an asynchronous request. Completes the request when served,
+     * on the async executor if one is set.
+     */
+    private final class AsyncWaiter extends ConnectionBag.Waiter {
+
+        private final CompletableFuture<Connection> future;
+        private final int rank;
+        private final long deadline;
+        private final long start;
+
+        AsyncWaiter(CompletableFuture<Connection> future, int rank,
+                long deadline, long start) {
+            super(null, rank);
+            this.future = future;
+            this.rank = rank;
+            this.deadline = deadline;
+            this.start = start;
+        }
+
+        @Override
+        void served(final PoolEntry e) {
+            Executor executor = asyncExecutor;
+            if (executor != null) {
+                try {
+                    executor.execute(() -> run(e, true));
+                    return;
+                } catch (RejectedExecutionException x) {
+                    logger.warn("Async executor rejected a request, completing"
+                            + " on the releasing thread!", x);
+                }
+            }
+            //Never validate or reconnect on the releasing thread
+            run(e, false);
+        }
+
+        private void run(PoolEntry e, boolean blocking) {
+            if (future.isDone()) {
+                //Cancelled meanwhile, pass the connection or wake-up on
+                if (e != null) {
+                    bag.requite(e);
+                } else {
+                    bag.signal();
+                }
+            } else if (e != null) {
+                checkOutAsync(future, e, rank, deadline, start, blocking);
+            } else {
+                //Woken up without a connection, try again
+                acquireAsync(future, rank, deadline, start);
+            }
+        }
+    }
+
+    /**
+     * A task of an asynchronous request queued on the creator threads. Fails
+     * the request if the pool is shut down before the task runs.
+     */
+    private final class AsyncTask implements Runnable {
+
+        private final CompletableFuture<Connection> future;
+        private final PoolEntry entry;
+        private final Runnable task;
+
+        /**
+         * Constructor.
+         *
+         * @param future CompletableFuture. The request to complete.
+         * @param entry PoolEntry. The entry in use by the task, null if the
+         * task creates one in a reserved slot.
+         * @param task Runnable. The work of the task.
+         */
+        AsyncTask(CompletableFuture<Connection> future, PoolEntry entry,
+                Runnable task) {
+            this.future = future;
+            this.entry = entry;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        /**
+         * Fails the request and gives up the entry or slot of the task.
+         */
+        void abort() {
+            if (entry != null) {
+                removeEntry(entry);
+            } else {
+                releaseSlot();
+            }
+            future.completeExceptionally(
+                    new SQLException(Errors.POOL_SHUTDOWN));
+        }
+    }
+
+    /**
+     * Creates the daemon threads of this pool.
+     */
+    private static final class PoolThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        PoolThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ConnectionPool-" + name + "-"
+                    + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    //Error definitions
+    final class Errors {
+
+        public static final String MAX_CONNECTION_REACHED =
+                "Maximum number of connections reached!";
+        public static final String CONNECTION_CLOSED =
+                "Connection is closed!";
+        public static final String STATEMENT_CLOSED =
+                "Statement is closed!";
+        public static final String FAIL_REGISTER_DRIVER =
+                "Failed to register driver!";
+        public static final String FAIL_CONNECTION =
+                "Failed to get connection!";
+        public static final String CONNECTION_TIMEOUT =
+                "Timed out waiting for a connection!";
+        public static final String INTERRUPTED =
+                "Interrupted while waiting for a connection!";
+        public static final String POOL_SHUTDOWN =
+                "Connection pool is shut down!";
+        public static final String NOT_A_WRAPPER =
+                "Connection pool is not a wrapper for ";
+        public static final String NO_PARENT_LOGGER =
+                "Connection pool logs through SLF4J!";
+        public static final String POOL_SUSPENDED =
+                "Connection pool is suspended!";
+        public static final String CONNECTS_SUSPENDED =
+                "Connects failed repeatedly, retrying after a backoff!";
+        public static final String QUOTA_REACHED =
+                "Timed out waiting for the connection quota of the caller!";
     }
 }
@@ -0,0 +1,77 @@
+package com.example.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * ConnectionValidator interface - checks that a pooled database connection is
+ * still usable.
+ */
+public interface ConnectionValidator {
+
+    /**
+     * Checks a database connection.
+     *
+     * @param c java.sql.Connection. The database connection, not the proxy.
+     * @param timeout int. Timeout in seconds, 0 for none.
+     * @return boolean True if the connection is usable.
+     * @throws java.sql.SQLException
+     */
+    public boolean isValid(Connection c, int timeout) throws SQLException;
+
+    /**
+     * Validates using Connection.isValid() of JDBC 4. Falls back to
+     * Connection.isClosed() for older drivers, which do not detect dead
+     * sockets; configure a test query for those.
+     */
+    public static final class Jdbc4 implements ConnectionValidator {
+
+        private volatile boolean supported = true;
+
+        @Override
+        public boolean isValid(Connection c, int timeout) throws SQLException {
+            if (supported) {
+                try {
+                    return c.isValid(timeout);
+                } catch (AbstractMethodError e) {
+                    supported = false;
+                } catch (java.sql.SQLFeatureNotSupportedException e) {
+                    supported = false;
+                }
+            }
+            return !c.isClosed();
+        }
+    }
+
+    /**
+     * Validates by executing a test query.
+     */
+    public static final class Query implements ConnectionValidator {
+
+        private final String query;
+
+        /**
+         * Constructor.
+         *
+         * @param query String. A cheap query, e.g. SELECT 1.
+         */
+        public Query(String query) {
+            this.query = query;
+        }
+
+        @Override
+        public boolean isValid(Connection c, int timeout) throws SQLException {
+            Statement s = c.createStatement();
+            try {
+                if (timeout > 0) {
+                    s.setQueryTimeout(timeout);
+                }
+                s.execute(query);
+                return true;
+            } finally {
+                s.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.database;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations with a fixed set of buckets. Each power of two is
+ * split into 8 buckets, so a recorded value is off by at most 12.5%, from
+ * nanoseconds up to about a day and a half.
+ *
+ * Every bucket is a striped LongAdder, recording a value never blocks and
+ * threads recording at the same time rarely touch the same memory. Reading
+ * sums the buckets, a read concurrent with recording may be slightly off.
+ */
+public final class LatencyHistogram {
+
+    //Sub-buckets per power of two
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //Largest power of two with buckets of its own, larger values are
+    //counted in the last bucket
+    private static final int MAX_MAGNITUDE = 47;
+    private static final int BUCKETS =
+            (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) << SUB_BUCKET_BITS;
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos long. The duration in nanoseconds.
+     */
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets[index(nanos)].increment();
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * Returns the number of recorded durations.
+     *
+     * @return long
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the sum of the recorded durations.
+     *
+     * @return long Sum in nanoseconds.
+     */
+    long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the mean of the recorded durations.
+     *
+     * @param unit java.util.concurrent.TimeUnit. The unit of the result.
+     * @return double 0 if nothing was recorded.
+     */
+    public double getMean(TimeUnit unit) {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n / unit.toNanos(1);
+    }
+
+    /**
+     * Returns the longest recorded duration.
+     *
+     * @param unit java.util.concurrent.TimeUnit. The unit of the result.
+     * @return long
+     */
+    public long getMax(TimeUnit unit) {
+        return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the duration below which the given percentage of the recorded
+     * durations lie, rounded up to the bucket bounds.
+     *
+     * @param percentile double. Between 0 and 100, e.g. 99.9.
+     * @param unit java.util.concurrent.TimeUnit. The unit of the result.
+     * @return long 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile, TimeUnit unit) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(
+                Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return unit.convert(Math.min(upperBound(i), max.get()),
+                        TimeUnit.NANOSECONDS);
+            }
+        }
+        return getMax(unit);
+    }
+
+    //Returns the bucket of a value
+    private static int index(long v) {
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(v);
+        if (magnitude > MAX_MAGNITUDE) {
+            return BUCKETS - 1;
+        }
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS)
+                + (int) ((v >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    //Returns the largest value of a bucket
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long lower = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1)))
+                << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount()
+                + " mean=" + getMean(TimeUnit.MICROSECONDS)
+                + "us p50=" + getPercentile(50, TimeUnit.MICROSECONDS)
+                + "us p99=" + getPercentile(99, TimeUnit.MICROSECONDS)
+                + "us max=" + getMax(TimeUnit.MICROSECONDS) + "us";
+    }
+}
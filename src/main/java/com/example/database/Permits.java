@@ -0,0 +1,39 @@
+package com.example.database;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A semaphore whose number of permits can be changed while permits are held,
+ * e.g. the permits to open a database connection or those of a quota.
+ * Holders of permits taken away by a smaller limit keep them until they
+ * release them.
+ */
+final class Permits extends Semaphore {
+
+    private static final long serialVersionUID = 1L;
+    private final AtomicInteger limit;
+
+    /**
+     * Constructor
+     *
+     * @param limit int. The initial number of permits.
+     */
+    Permits(int limit) {
+        super(limit);
+        this.limit = new AtomicInteger(limit);
+    }
+
+    int limit() {
+        return limit.get();
+    }
+
+    void resize(int newLimit) {
+        int delta = newLimit - limit.getAndSet(newLimit);
+        if (delta > 0) {
+            release(delta);
+        } else if (delta < 0) {
+            reducePermits(-delta);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.database;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * An entry of the connection bag. Wraps a pooled proxy connection together
+ * with a state word. Ownership of the connection moves between threads by
+ * compare-and-set on the state, so no lock is needed to borrow or return it.
+ */
+final class PoolEntry {
+
+    //States
+    static final int STATE_FREE = 0;
+    static final int STATE_IN_USE = 1;
+    static final int STATE_REMOVED = -1;
+    static final int STATE_RESERVED = -2;
+    //Field updaters
+    private static final AtomicIntegerFieldUpdater<PoolEntry> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(PoolEntry.class, "state");
+    private static final AtomicIntegerFieldUpdater<PoolEntry> QUEUED =
+            AtomicIntegerFieldUpdater.newUpdater(PoolEntry.class, "queued");
+    private static final AtomicIntegerFieldUpdater<PoolEntry> LEASED =
+            AtomicIntegerFieldUpdater.newUpdater(PoolEntry.class, "leased");
+    //The proxy connection handed out to callers
+    final ProxyConnection connection;
+    //System.nanoTime() when created and when last returned to the pool
+    final long createdAt;
+    volatile long lastAccessed;
+    //Random fraction of the lifetime jitter of this entry
+    final double lifetimeVariance;
+    //Set when the entry should be retired once it is returned
+    volatile boolean evicted;
+    //System.nanoTime() when handed out, the borrowing thread and the sampled
+    //borrow site; only recorded while leak detection is enabled
+    volatile long borrowedAt;
+    volatile Thread borrower;
+    volatile Throwable borrowSite;
+    volatile boolean leakReported;
+    //The quota the connection counts against while handed out, if any
+    volatile Bulkhead bulkhead;
+    private volatile int state;
+    //Set while this entry sits in the free queue of the bag
+    private volatile int queued;
+    //Set while the connection is handed out
+    private volatile int leased;
+
+    /**
+     * Constructor. A new entry starts in use by the thread that created it.
+     *
+     * @param connection ProxyConnection. A proxy created by the pool.
+     */
+    PoolEntry(ProxyConnection connection) {
+        this.connection = connection;
+        this.connection.entry = this;
+        this.state = STATE_IN_USE;
+        this.createdAt = System.nanoTime();
+        this.lastAccessed = createdAt;
+        this.lifetimeVariance = ThreadLocalRandom.current().nextDouble();
+    }
+
+    /**
+     * Returns whether this entry outlived the given lifetime. Each entry
+     * expires up to the given jitter earlier, so that connections opened
+     * together are not all retired at once.
+     *
+     * @param maxLifetime long. Lifetime in nanoseconds.
+     * @param jitter double. Fraction of the lifetime.
+     * @param now long. The current System.nanoTime().
+     * @return boolean
+     */
+    boolean isExpired(long maxLifetime, double jitter, long now) {
+        long lifetime = maxLifetime - (long) (maxLifetime * jitter
+                * lifetimeVariance);
+        return now - createdAt >= lifetime;
+    }
+
+    int getState() {
+        return state;
+    }
+
+    void setState(int state) {
+        this.state = state;
+    }
+
+    boolean compareAndSet(int expect, int update) {
+        return STATE.compareAndSet(this, expect, update);
+    }
+
+    /**
+     * Marks this entry as queued.
+     *
+     * @return boolean False if the entry was already queued.
+     */
+    boolean markQueued() {
+        return QUEUED.compareAndSet(this, 0, 1);
+    }
+
+    void clearQueued() {
+        queued = 0;
+    }
+
+    /**
+     * Marks the connection of this entry as handed out to the caller.
+     */
+    void lease() {
+        leased = 1;
+    }
+
+    /**
+     * Takes the connection of this entry back, either from the caller or
+     * from a caller who abandoned it.
+     *
+     * @return boolean False if it was taken back already.
+     */
+    boolean endLease() {
+        return LEASED.compareAndSet(this, 1, 0);
+    }
+
+    @Override
+    public String toString() {
+        return "PoolEntry[" + connection.c + ", state=" + state + "]";
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.database;
+
+/**
+ * PoolMXBean interface - management view of a connection pool. Registered
+ * under com.example.database:type=ConnectionPool,name=poolName when the pool
+ * is configured with registerMBean. Reading an attribute only sums counters,
+ * it never blocks the pool.
+ */
+public interface PoolMXBean {
+
+    /**
+     * Returns the number of connections handed out.
+     *
+     * @return int
+     */
+    public int getActiveConnections();
+
+    /**
+     * Returns the number of connections not handed out.
+     *
+     * @return int
+     */
+    public int getIdleConnections();
+
+    /**
+     * Returns the number of connections, including those being opened.
+     *
+     * @return int
+     */
+    public int getTotalConnections();
+
+    /**
+     * Returns the number of requests waiting for a connection.
+     *
+     * @return int
+     */
+    public int getPendingRequests();
+
+    /**
+     * Returns the maximum number of connections.
+     *
+     * @return int
+     */
+    public int getMaxConnections();
+
+    /**
+     * Resizes the pool. Connections above a lower maximum are closed when
+     * idle or when returned.
+     *
+     * @param maxConnections int
+     */
+    public void setMaxConnections(int maxConnections);
+
+    /**
+     * Returns the number of connections which may be opened, below
+     * MaxConnections while the adaptive sizing holds the pool back.
+     *
+     * @return int
+     */
+    public int getConnectionLimit();
+
+    /**
+     * Returns the number of requests which found no connection in time.
+     *
+     * @return long
+     */
+    public long getTimeoutCount();
+
+    /**
+     * Returns the median time waited for a connection.
+     *
+     * @return long Time in microseconds.
+     */
+    public long getAcquireTimeMedian();
+
+    /**
+     * Returns the 99th percentile of the time waited for a connection.
+     *
+     * @return long Time in microseconds.
+     */
+    public long getAcquireTime99thPercentile();
+
+    /**
+     * Returns the longest time waited for a connection.
+     *
+     * @return long Time in microseconds.
+     */
+    public long getAcquireTimeMax();
+
+    /**
+     * Returns the median time connections were held.
+     *
+     * @return long Time in microseconds.
+     */
+    public long getHoldTimeMedian();
+
+    /**
+     * Returns the 99th percentile of the time connections were held.
+     *
+     * @return long Time in microseconds.
+     */
+    public long getHoldTime99thPercentile();
+
+    /**
+     * Returns the 99th percentile of the time taken to open a connection.
+     *
+     * @return long Time in microseconds.
+     */
+    public long getCreationTime99thPercentile();
+
+    /**
+     * Returns the state of the circuit breaker of connects.
+     *
+     * @return String CLOSED, OPEN or HALF_OPEN.
+     */
+    public String getCircuitState();
+
+    /**
+     * Returns the number of connects failed fast by the circuit breaker.
+     *
+     * @return long
+     */
+    public long getRejectedConnectCount();
+
+    /**
+     * Returns the connections each tag with a quota holds.
+     *
+     * @return java.util.Map
+     */
+    public java.util.Map<String, Integer> getQuotaInUse();
+
+    /**
+     * Returns the most connections each tag with a quota held at the same
+     * time.
+     *
+     * @return java.util.Map
+     */
+    public java.util.Map<String, Integer> getQuotaPeak();
+
+    /**
+     * Returns the number of requests of each tag which timed out waiting for
+     * the quota of the tag.
+     *
+     * @return java.util.Map
+     */
+    public java.util.Map<String, Long> getQuotaRejectedCount();
+
+    /**
+     * Returns whether handing out connections is suspended.
+     *
+     * @return boolean
+     */
+    public boolean isSuspended();
+
+    /**
+     * Suspends handing out connections. Requests wait until the pool is
+     * resumed or they time out, connections in use are not affected.
+     */
+    public void suspendPool();
+
+    /**
+     * Resumes handing out connections.
+     */
+    public void resumePool();
+
+    /**
+     * Replaces all connections. Idle connections are closed right away,
+     * connections in use when they are returned.
+     */
+    public void softEvictConnections();
+}
@@ -0,0 +1,154 @@
+package com.example.database;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The PoolMXBean of a connection pool.
+ */
+final class PoolMonitor implements PoolMXBean {
+
+    private final ConnectionPoolFactory cpf;
+
+    /**
+     * Constructor
+     *
+     * @param cpf com.example.database.ConnectionPoolFactory
+     */
+    PoolMonitor(ConnectionPoolFactory cpf) {
+        this.cpf = cpf;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return cpf.getActiveConnections();
+    }
+
+    @Override
+    public int getIdleConnections() {
+        return cpf.getIdleConnections();
+    }
+
+    @Override
+    public int getTotalConnections() {
+        return cpf.getTotalConnections();
+    }
+
+    @Override
+    public int getPendingRequests() {
+        return cpf.getPendingRequests();
+    }
+
+    @Override
+    public int getMaxConnections() {
+        return cpf.getMaxConnections();
+    }
+
+    @Override
+    public void setMaxConnections(int maxConnections) {
+        cpf.setMaxConnections(maxConnections);
+    }
+
+    @Override
+    public int getConnectionLimit() {
+        return cpf.getConnectionLimit();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return cpf.getTimeoutCount();
+    }
+
+    @Override
+    public long getAcquireTimeMedian() {
+        return cpf.getAcquireTimeHistogram().getPercentile(50,
+                TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getAcquireTime99thPercentile() {
+        return cpf.getAcquireTimeHistogram().getPercentile(99,
+                TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getAcquireTimeMax() {
+        return cpf.getAcquireTimeHistogram().getMax(TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getHoldTimeMedian() {
+        return cpf.getHoldTimeHistogram().getPercentile(50,
+                TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getHoldTime99thPercentile() {
+        return cpf.getHoldTimeHistogram().getPercentile(99,
+                TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getCreationTime99thPercentile() {
+        return cpf.getCreationTimeHistogram().getPercentile(99,
+                TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public String getCircuitState() {
+        return cpf.getCircuitState();
+    }
+
+    @Override
+    public long getRejectedConnectCount() {
+        return cpf.getRejectedConnectCount();
+    }
+
+    @Override
+    public Map<String, Integer> getQuotaInUse() {
+        Map<String, Integer> map = new TreeMap<String, Integer>();
+        for (String tag : cpf.getQuotaTags()) {
+            map.put(tag, cpf.getQuotaInUse(tag));
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Integer> getQuotaPeak() {
+        Map<String, Integer> map = new TreeMap<String, Integer>();
+        for (String tag : cpf.getQuotaTags()) {
+            map.put(tag, cpf.getQuotaPeak(tag));
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getQuotaRejectedCount() {
+        Map<String, Long> map = new TreeMap<String, Long>();
+        for (String tag : cpf.getQuotaTags()) {
+            map.put(tag, cpf.getQuotaRejectedCount(tag));
+        }
+        return map;
+    }
+
+    @Override
+    public boolean isSuspended() {
+        return cpf.isSuspended();
+    }
+
+    @Override
+    public void suspendPool() {
+        cpf.suspend();
+    }
+
+    @Override
+    public void resumePool() {
+        cpf.resume();
+    }
+
+    @Override
+    public void softEvictConnections() {
+        cpf.softEvictConnections();
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.database;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adapts the connection limit of a pool to its load, between minConnections
+ * and maxConnections. Runs periodically on the scheduler thread and reads
+ * only the counters and histograms of the pool.
+ *
+ * Each period it measures how many connections were in use on average, by
+ * Little's law the total time connections were held divided by the period,
+ * and whether callers had to wait for a connection at the limit. The limit
+ * grows by its square root while callers wait, and otherwise shrinks towards
+ * twice the connections in use, so that an idle pool does not keep
+ * connections the database could give to others.
+ *
+ * The time connections are held is compared with its lowest recent value,
+ * which approximates the latency of the database when it is not loaded. When
+ * holds take longer, the limit is scaled down by the ratio of the two, down
+ * to half, so that a database slowing down under the load gets fewer
+ * concurrent queries instead of more. The baseline drifts towards the
+ * current hold time, so a lasting change of the workload is accepted after
+ * some periods. Changes are smoothed over about two periods.
+ */
+final class PoolSizeController implements Runnable {
+
+    //Weight of a new target limit
+    private static final double SMOOTHING = 0.5;
+    //Weight of the current hold time in the baseline
+    private static final double BASELINE_DRIFT = 0.05;
+    private static final double MIN_GRADIENT = 0.5;
+    //Connections kept per connection in use when callers do not wait
+    private static final double HEADROOM = 2;
+    //Mean wait which counts as waiting for the limit
+    private static final long WAIT_THRESHOLD = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final Logger logger =
+            LoggerFactory.getLogger(PoolSizeController.class);
+    private final ConnectionPoolFactory cpf;
+    //Totals at the previous run
+    private long lastRun;
+    private long holds;
+    private long holdTime;
+    private long acquires;
+    private long acquireTime;
+    private long timeouts;
+    //Baseline hold time in nanoseconds, 0 until measured
+    private double baseline = 0;
+    private double limit;
+
+    /**
+     * Constructor
+     *
+     * @param cpf com.example.database.ConnectionPoolFactory
+     */
+    PoolSizeController(ConnectionPoolFactory cpf) {
+        this.cpf = cpf;
+        this.limit = cpf.getConnectionLimit();
+        sample();
+    }
+
+    @Override
+    public void run() {
+        if (!cpf.isAdaptiveSizing()) {
+            //Disabled while this run was due
+            return;
+        }
+        try {
+            long lastRun = this.lastRun;
+            long holds = this.holds;
+            long holdTime = this.holdTime;
+            long acquires = this.acquires;
+            long acquireTime = this.acquireTime;
+            long timeouts = this.timeouts;
+            sample();
+            adjust(this.lastRun - lastRun, this.holds - holds,
+                    this.holdTime - holdTime, this.acquires - acquires,
+                    this.acquireTime - acquireTime, this.timeouts - timeouts);
+        } catch (RuntimeException e) {
+            logger.error("Adaptive sizing failed!", e);
+        }
+    }
+
+    //Reads the totals of the pool
+    private void sample() {
+        LatencyHistogram hold = cpf.getHoldTimeHistogram();
+        LatencyHistogram acquire = cpf.getAcquireTimeHistogram();
+        lastRun = System.nanoTime();
+        holds = hold.getCount();
+        holdTime = hold.sum();
+        acquires = acquire.getCount();
+        acquireTime = acquire.sum();
+        timeouts = cpf.getTimeoutCount();
+    }
+
+    /**
+     * Adjusts the limit to the load of the last period.
+     *
+     * @param period long. Length of the period in nanoseconds.
+     * @param holds long. Connections returned in the period.
+     * @param holdTime long. Time they were held, in nanoseconds.
+     * @param acquires long. Connections handed out in the period.
+     * @param acquireTime long. Time callers waited for them, in nanoseconds.
+     * @param timeouts long. Requests timed out in the period.
+     */
+    private void adjust(long period, long holds, long holdTime, long acquires,
+            long acquireTime, long timeouts) {
+        int current = cpf.getConnectionLimit();
+        if (Math.abs(limit - current) >= 1) {
+            //Resized by someone else
+            limit = current;
+        }
+        double inUse = cpf.getActiveConnections();
+        double gradient = 1;
+        if (holds > 0 && period > 0) {
+            double latency = (double) holdTime / holds;
+            baseline = baseline == 0 || latency < baseline ? latency
+                    : baseline * (1 - BASELINE_DRIFT) + latency * BASELINE_DRIFT;
+            gradient = Math.max(MIN_GRADIENT, Math.min(1, baseline / latency));
+            inUse = Math.max(inUse, (double) holdTime / period);
+        }
+        boolean waiting = cpf.getTotalConnections() >= current
+                && (cpf.getPendingRequests() > 0 || timeouts > 0
+                || (acquires > 0 && acquireTime / acquires > WAIT_THRESHOLD));
+        double target = limit * gradient;
+        if (waiting) {
+            target += Math.sqrt(limit);
+        } else {
+            target = Math.min(target, inUse * HEADROOM);
+        }
+        limit = limit * (1 - SMOOTHING) + target * SMOOTHING;
+        int max = cpf.getMaxConnections();
+        limit = Math.max(Math.min(cpf.getMinConnections(), max),
+                Math.min(max, limit));
+        int n = (int) Math.round(limit);
+        if (n != current) {
+            logger.debug("Adapting connection limit from " + current + " to " + n
+                    + ", in use " + inUse + ", hold time gradient " + gradient
+                    + (waiting ? ", callers waiting" : ""));
+            cpf.resizeAdaptive(n);
+        }
+    }
+}
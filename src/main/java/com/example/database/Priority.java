@@ -0,0 +1,21 @@
+package com.example.database;
+
+/**
+ * Priority enum - the class of a connection request. When the pool is
+ * exhausted, waiting requests of a higher priority are served first.
+ */
+public enum Priority {
+
+    /**
+     * Latency sensitive requests, e.g. health checks and user requests.
+     */
+    HIGH,
+    /**
+     * The priority of requests which do not give one.
+     */
+    NORMAL,
+    /**
+     * Requests which can wait, e.g. batch jobs.
+     */
+    LOW
+}
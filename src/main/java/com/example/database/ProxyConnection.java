@@ -0,0 +1,688 @@
+package com.example.database;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+import com.example.database.ConnectionPoolFactory.Errors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The connection handed out by the pool. Delegates every call to the database
+ * connection it wraps, except for close(), which returns it to the pool.
+ *
+ * The delegation is written out per method instead of going through a
+ * java.lang.reflect.Proxy, so a call costs a volatile read of the closed flag
+ * and a direct interface call, no name lookup, reflective invoke or boxing of
+ * the arguments.
+ *
+ * Statements, their result sets and the metadata are wrapped as well, so
+ * that the database connection is never reachable by the caller.
+ * Statements are tracked by the connection, so those left open by the
+ * caller are closed when the connection is returned to the pool. The
+ * tracking is not synchronized: a connection and its statements must be
+ * used by one thread at a time, and the pool closes them on the thread
+ * returning the connection. The statements are kept in a plain array which
+ * is reused for the lifetime of the connection.
+ *
+ * If the pool has a statement cache size, prepared statements closed by the
+ * caller are kept in a statement cache of the connection and handed out
+ * again, wrapped anew, when the same SQL is prepared with the same options.
+ *
+ * Changes of session properties are recorded in a set of dirty bits. On
+ * return to the pool an open transaction is rolled back and only the changed
+ * properties are restored to the values the database connection was opened
+ * with, a connection which was used as it came costs no extra round trip.
+ */
+final class ProxyConnection implements Connection {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(ProxyConnection.class);
+    //Initial capacity of the statement array
+    private static final int INITIAL_STATEMENTS = 8;
+    //Session properties
+    private static final int AUTO_COMMIT = 1;
+    private static final int TRANSACTION_ISOLATION = 2;
+    private static final int READ_ONLY = 4;
+    private static final int CATALOG = 8;
+    private static final int SCHEMA = 16;
+    private static final int NETWORK_TIMEOUT = 32;
+    //Runs the abort of a timed out network call on the calling thread
+    private static final Executor DIRECT_EXECUTOR = Runnable::run;
+    //The database connection, replaced when it is found closed
+    Connection c = null;
+    final ConnectionPoolFactory cpf;
+    PoolEntry entry = null;
+    volatile boolean closed = true;
+    //Open statements created through this connection
+    private ProxyStatement[] statements =
+            new ProxyStatement[INITIAL_STATEMENTS];
+    private int statementCount = 0;
+    //Prepared statements closed by the caller, created on first use
+    private StatementCache statementCache = null;
+    //Session properties changed by the caller, and those whose initial
+    //value has been read
+    private int dirty = 0;
+    private int known = 0;
+    //Session properties as the database connection was opened
+    private boolean defaultAutoCommit;
+    private int defaultTransactionIsolation;
+    private boolean defaultReadOnly;
+    private String defaultCatalog;
+    private String defaultSchema;
+    private int defaultNetworkTimeout;
+    private boolean autoCommit;
+
+    /**
+     * Constructor
+     *
+     * @param c java.sql.Connection
+     * @param cpf com.example.database.ConnectionPoolFactory
+     * @throws SQLException
+     */
+    ProxyConnection(Connection c, ConnectionPoolFactory cpf)
+            throws SQLException {
+        this.cpf = cpf;
+        connect(c);
+    }
+
+    /**
+     * Replaces the database connection, e.g. when it was found closed.
+     *
+     * @param c java.sql.Connection
+     * @throws SQLException
+     */
+    void connect(Connection c) throws SQLException {
+        clearStatementCache();
+        this.c = c;
+        dirty = 0;
+        known = 0;
+        //The auto-commit mode decides whether to roll back on release, so it
+        //is always known
+        defaultAutoCommit = c.getAutoCommit();
+        autoCommit = defaultAutoCommit;
+    }
+
+    /**
+     * Rolls back a transaction left open and restores the session properties
+     * changed by the caller, on return to the pool.
+     *
+     * @return boolean False if the connection could not be reset and should
+     * be discarded.
+     */
+    boolean resetSession() {
+        try {
+            if (!autoCommit) {
+                c.rollback();
+            }
+            if (dirty != 0) {
+                if ((dirty & AUTO_COMMIT) != 0) {
+                    c.setAutoCommit(defaultAutoCommit);
+                    autoCommit = defaultAutoCommit;
+                }
+                if ((dirty & TRANSACTION_ISOLATION) != 0) {
+                    c.setTransactionIsolation(defaultTransactionIsolation);
+                }
+                if ((dirty & READ_ONLY) != 0) {
+                    c.setReadOnly(defaultReadOnly);
+                }
+                if ((dirty & CATALOG) != 0) {
+                    c.setCatalog(defaultCatalog);
+                }
+                if ((dirty & SCHEMA) != 0) {
+                    c.setSchema(defaultSchema);
+                }
+                if ((dirty & NETWORK_TIMEOUT) != 0) {
+                    c.setNetworkTimeout(DIRECT_EXECUTOR, defaultNetworkTimeout);
+                }
+                dirty = 0;
+            }
+            return true;
+        } catch (SQLException e) {
+            logger.warn("Failed to reset connection " + c, e);
+            return false;
+        }
+    }
+
+    //Marks a session property as changed unless set back to its default
+    private void changed(int property, boolean isDefault) {
+        dirty = isDefault ? dirty & ~property : dirty | property;
+    }
+
+    /**
+     * Registers a statement created through this connection.
+     *
+     * @param s ProxyStatement
+     * @return T The given statement.
+     */
+    private <T extends ProxyStatement> T track(T s) {
+        if (statementCount == statements.length) {
+            statements = Arrays.copyOf(statements, statementCount * 2);
+        }
+        statements[statementCount++] = s;
+        return s;
+    }
+
+    /**
+     * Unregisters a statement closed by the caller.
+     *
+     * @param s ProxyStatement
+     */
+    void untrack(ProxyStatement s) {
+        //Statements are mostly closed in the reverse order of creation
+        for (int i = statementCount - 1; i >= 0; i--) {
+            if (statements[i] == s) {
+                statements[i] = statements[--statementCount];
+                statements[statementCount] = null;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Closes the statements left open, on return to the pool.
+     */
+    void closeStatements() {
+        for (int i = statementCount - 1; i >= 0; i--) {
+            ProxyStatement s = statements[i];
+            statements[i] = null;
+            try {
+                s.closeTracked();
+            } catch (SQLException e) {
+                logger.warn("Failed to close statement " + s, e);
+            }
+        }
+        if (statementCount > 0) {
+            logger.debug("Closed " + statementCount + " statements left open");
+            statementCount = 0;
+        }
+    }
+
+    /**
+     * Prepares a statement, reusing a cached database statement if the
+     * statement cache of the pool is enabled.
+     *
+     * @param sql String
+     * @param resultSetType int
+     * @param resultSetConcurrency int
+     * @param resultSetHoldability int. -1 for the default holdability.
+     * @param autoGeneratedKeys int
+     * @return java.sql.PreparedStatement
+     * @throws SQLException
+     */
+    private PreparedStatement prepare(String sql, int resultSetType,
+            int resultSetConcurrency, int resultSetHoldability,
+            int autoGeneratedKeys) throws SQLException {
+        StatementCache.Key key = null;
+        PreparedStatement ps = null;
+        if (cpf.getStatementCacheSize() > 0) {
+            if (statementCache == null) {
+                statementCache = new StatementCache(cpf.statementCacheCounters);
+            }
+            key = new StatementCache.Key(sql, resultSetType,
+                    resultSetConcurrency, resultSetHoldability,
+                    autoGeneratedKeys);
+            ps = statementCache.take(key);
+        }
+        if (ps == null) {
+            if (resultSetHoldability != -1) {
+                ps = c.prepareStatement(sql, resultSetType,
+                        resultSetConcurrency, resultSetHoldability);
+            } else if (autoGeneratedKeys != Statement.NO_GENERATED_KEYS) {
+                ps = c.prepareStatement(sql, autoGeneratedKeys);
+            } else if (resultSetType != ResultSet.TYPE_FORWARD_ONLY
+                    || resultSetConcurrency != ResultSet.CONCUR_READ_ONLY) {
+                ps = c.prepareStatement(sql, resultSetType,
+                        resultSetConcurrency);
+            } else {
+                ps = c.prepareStatement(sql);
+            }
+        }
+        return track(new ProxyPreparedStatement(this, ps, key));
+    }
+
+    /**
+     * Keeps a database statement closed by the caller for reuse.
+     *
+     * @param key StatementCache.Key
+     * @param ps java.sql.PreparedStatement
+     * @return boolean False if the statement was not cached.
+     */
+    boolean cacheStatement(StatementCache.Key key, PreparedStatement ps) {
+        return statementCache != null
+                && statementCache.put(key, ps, cpf.getStatementCacheSize());
+    }
+
+    /**
+     * Closes the cached statements, when the database connection is replaced.
+     */
+    void clearStatementCache() {
+        if (statementCache != null) {
+            statementCache.clear();
+        }
+    }
+
+    //Throws if this connection has been returned to the pool
+    private void checkOpen() throws SQLException {
+        if (closed) {
+            throw new SQLException(Errors.CONNECTION_CLOSED);
+        }
+    }
+
+    //Returns this connection to the pool, the usual way with the pool used as
+    //a DataSource. Closing a closed connection has no effect.
+    @Override
+    public void close() throws SQLException {
+        if (!closed) {
+            cpf.releaseConnection(this);
+        }
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        //The closed status of the proxy connection instead of the database
+        //connection
+        return closed;
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        checkOpen();
+        return track(new ProxyStatement(this, c.createStatement()));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        checkOpen();
+        return prepare(sql, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY, -1, Statement.NO_GENERATED_KEYS);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        checkOpen();
+        return track(new ProxyCallableStatement(this, c.prepareCall(sql)));
+    }
+
+    @Override
+    public String nativeSQL(String sql) throws SQLException {
+        checkOpen();
+        return c.nativeSQL(sql);
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        checkOpen();
+        c.setAutoCommit(autoCommit);
+        this.autoCommit = autoCommit;
+        changed(AUTO_COMMIT, autoCommit == defaultAutoCommit);
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        checkOpen();
+        return c.getAutoCommit();
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        checkOpen();
+        c.commit();
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        checkOpen();
+        c.rollback();
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        checkOpen();
+        DatabaseMetaData md = c.getMetaData();
+        return md == null ? null : new ProxyDatabaseMetaData(this, md);
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        checkOpen();
+        if ((known & READ_ONLY) == 0) {
+            defaultReadOnly = c.isReadOnly();
+            known |= READ_ONLY;
+        }
+        c.setReadOnly(readOnly);
+        changed(READ_ONLY, readOnly == defaultReadOnly);
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        checkOpen();
+        return c.isReadOnly();
+    }
+
+    @Override
+    public void setCatalog(String catalog) throws SQLException {
+        checkOpen();
+        if ((known & CATALOG) == 0) {
+            defaultCatalog = c.getCatalog();
+            known |= CATALOG;
+        }
+        c.setCatalog(catalog);
+        changed(CATALOG, Objects.equals(catalog, defaultCatalog));
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        checkOpen();
+        return c.getCatalog();
+    }
+
+    @Override
+    public void setTransactionIsolation(int level) throws SQLException {
+        checkOpen();
+        if ((known & TRANSACTION_ISOLATION) == 0) {
+            defaultTransactionIsolation = c.getTransactionIsolation();
+            known |= TRANSACTION_ISOLATION;
+        }
+        c.setTransactionIsolation(level);
+        changed(TRANSACTION_ISOLATION, level == defaultTransactionIsolation);
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        checkOpen();
+        return c.getTransactionIsolation();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        checkOpen();
+        return c.getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        checkOpen();
+        c.clearWarnings();
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType,
+            int resultSetConcurrency) throws SQLException {
+        checkOpen();
+        return track(new ProxyStatement(this,
+                c.createStatement(resultSetType, resultSetConcurrency)));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType,
+            int resultSetConcurrency) throws SQLException {
+        checkOpen();
+        return prepare(sql, resultSetType, resultSetConcurrency, -1,
+                Statement.NO_GENERATED_KEYS);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType,
+            int resultSetConcurrency) throws SQLException {
+        checkOpen();
+        return track(new ProxyCallableStatement(this,
+                c.prepareCall(sql, resultSetType, resultSetConcurrency)));
+    }
+
+    @Override
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        checkOpen();
+        return c.getTypeMap();
+    }
+
+    @Override
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        checkOpen();
+        c.setTypeMap(map);
+    }
+
+    @Override
+    public void setHoldability(int holdability) throws SQLException {
+        checkOpen();
+        c.setHoldability(holdability);
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        checkOpen();
+        return c.getHoldability();
+    }
+
+    @Override
+    public Savepoint setSavepoint() throws SQLException {
+        checkOpen();
+        return c.setSavepoint();
+    }
+
+    @Override
+    public Savepoint setSavepoint(String name) throws SQLException {
+        checkOpen();
+        return c.setSavepoint(name);
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+        checkOpen();
+        c.rollback(savepoint);
+    }
+
+    @Override
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        checkOpen();
+        c.releaseSavepoint(savepoint);
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType,
+            int resultSetConcurrency, int resultSetHoldability)
+            throws SQLException {
+        checkOpen();
+        return track(new ProxyStatement(this,
+                c.createStatement(resultSetType, resultSetConcurrency,
+                resultSetHoldability)));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType,
+            int resultSetConcurrency, int resultSetHoldability)
+            throws SQLException {
+        checkOpen();
+        return prepare(sql, resultSetType, resultSetConcurrency,
+                resultSetHoldability, Statement.NO_GENERATED_KEYS);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType,
+            int resultSetConcurrency, int resultSetHoldability)
+            throws SQLException {
+        checkOpen();
+        return track(new ProxyCallableStatement(this,
+                c.prepareCall(sql, resultSetType, resultSetConcurrency,
+                resultSetHoldability)));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys)
+            throws SQLException {
+        checkOpen();
+        return prepare(sql, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY, -1, autoGeneratedKeys);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes)
+            throws SQLException {
+        checkOpen();
+        return track(new ProxyPreparedStatement(this,
+                c.prepareStatement(sql, columnIndexes)));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String[] columnNames)
+            throws SQLException {
+        checkOpen();
+        return track(new ProxyPreparedStatement(this,
+                c.prepareStatement(sql, columnNames)));
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        checkOpen();
+        return c.createClob();
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        checkOpen();
+        return c.createBlob();
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        checkOpen();
+        return c.createNClob();
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        checkOpen();
+        return c.createSQLXML();
+    }
+
+    @Override
+    public boolean isValid(int timeout) throws SQLException {
+        checkOpen();
+        return c.isValid(timeout);
+    }
+
+    @Override
+    public void setClientInfo(String name, String value)
+            throws SQLClientInfoException {
+        if (closed) {
+            throw new SQLClientInfoException(Errors.CONNECTION_CLOSED, null);
+        }
+        c.setClientInfo(name, value);
+    }
+
+    @Override
+    public void setClientInfo(Properties properties)
+            throws SQLClientInfoException {
+        if (closed) {
+            throw new SQLClientInfoException(Errors.CONNECTION_CLOSED, null);
+        }
+        c.setClientInfo(properties);
+    }
+
+    @Override
+    public String getClientInfo(String name) throws SQLException {
+        checkOpen();
+        return c.getClientInfo(name);
+    }
+
+    @Override
+    public Properties getClientInfo() throws SQLException {
+        checkOpen();
+        return c.getClientInfo();
+    }
+
+    @Override
+    public Array createArrayOf(String typeName, Object[] elements)
+            throws SQLException {
+        checkOpen();
+        return c.createArrayOf(typeName, elements);
+    }
+
+    @Override
+    public Struct createStruct(String typeName, Object[] attributes)
+            throws SQLException {
+        checkOpen();
+        return c.createStruct(typeName, attributes);
+    }
+
+    @Override
+    public void setSchema(String schema) throws SQLException {
+        checkOpen();
+        if ((known & SCHEMA) == 0) {
+            defaultSchema = c.getSchema();
+            known |= SCHEMA;
+        }
+        c.setSchema(schema);
+        changed(SCHEMA, Objects.equals(schema, defaultSchema));
+    }
+
+    @Override
+    public String getSchema() throws SQLException {
+        checkOpen();
+        return c.getSchema();
+    }
+
+    @Override
+    public void abort(Executor executor) throws SQLException {
+        checkOpen();
+        c.abort(executor);
+    }
+
+    @Override
+    public void setNetworkTimeout(Executor executor, int milliseconds)
+            throws SQLException {
+        checkOpen();
+        if ((known & NETWORK_TIMEOUT) == 0) {
+            defaultNetworkTimeout = c.getNetworkTimeout();
+            known |= NETWORK_TIMEOUT;
+        }
+        c.setNetworkTimeout(executor, milliseconds);
+        changed(NETWORK_TIMEOUT, milliseconds == defaultNetworkTimeout);
+    }
+
+    @Override
+    public int getNetworkTimeout() throws SQLException {
+        checkOpen();
+        return c.getNetworkTimeout();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        checkOpen();
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return c.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        checkOpen();
+        return iface.isInstance(this) || c.isWrapperFor(iface);
+    }
+
+    @Override
+    public String toString() {
+        return "ProxyConnection[" + c + "]";
+    }
+}
@@ -0,0 +1,522 @@
+package com.example.database;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+
+import com.example.database.ConnectionPoolFactory.Errors;
+
+/**
+ * A statement created through a pooled connection. The statement registers
+ * with its connection, which closes it when the connection is returned to the
+ * pool, and getConnection() returns the pooled connection instead of the
+ * database connection. Result sets are wrapped so that getStatement() returns
+ * this statement, and are closed along with it.
+ *
+ * A closed statement throws on every call, so that a caller keeping it can
+ * not reach a database statement cached and handed out again. Changes of the
+ * statement properties are recorded in a set of dirty bits, and restored
+ * before the database statement is cached. A statement whose cursor name was
+ * set, which closes on completion or which the caller made non-poolable is
+ * not cached, as these can not be restored.
+ */
+class ProxyStatement implements Statement {
+
+    //Statement properties
+    private static final int MAX_ROWS = 1;
+    private static final int QUERY_TIMEOUT = 2;
+    private static final int FETCH_SIZE = 4;
+    private static final int FETCH_DIRECTION = 8;
+    private static final int MAX_FIELD_SIZE = 16;
+    private static final int ESCAPE_PROCESSING = 32;
+    private static final int POOLABLE = 64;
+    private static final int CURSOR_NAME = 128;
+    private static final int CLOSE_ON_COMPLETION = 256;
+    final ProxyConnection connection;
+    private final Statement s;
+    //Set once closed or untracked, read by a caller keeping the statement
+    //after closing it
+    private volatile boolean closed = false;
+    //Statement properties changed by the caller, and their values before
+    private int dirty = 0;
+    private int defaultMaxRows;
+    private int defaultQueryTimeout;
+    private int defaultFetchSize;
+    private int defaultFetchDirection;
+    private int defaultMaxFieldSize;
+    private boolean defaultPoolable;
+
+    /**
+     * Constructor
+     *
+     * @param connection ProxyConnection. The connection creating the statement.
+     * @param s java.sql.Statement. The statement of the database connection.
+     */
+    ProxyStatement(ProxyConnection connection, Statement s) {
+        this.connection = connection;
+        this.s = s;
+    }
+
+    /**
+     * Closes this statement without unregistering it from the connection,
+     * which forgets all its statements at once.
+     *
+     * @throws SQLException
+     */
+    void closeTracked() throws SQLException {
+        if (!closed) {
+            closed = true;
+            release();
+        }
+    }
+
+    //Throws if this statement has been closed
+    void checkOpen() throws SQLException {
+        if (closed) {
+            throw new SQLException(Errors.STATEMENT_CLOSED);
+        }
+    }
+
+    /**
+     * Records the value of a statement property before the caller changes
+     * it for the first time.
+     *
+     * @param property int
+     * @throws SQLException
+     */
+    private void change(int property) throws SQLException {
+        if ((dirty & property) != 0) {
+            return;
+        }
+        switch (property) {
+            case MAX_ROWS:
+                defaultMaxRows = s.getMaxRows();
+                break;
+            case QUERY_TIMEOUT:
+                defaultQueryTimeout = s.getQueryTimeout();
+                break;
+            case FETCH_SIZE:
+                defaultFetchSize = s.getFetchSize();
+                break;
+            case FETCH_DIRECTION:
+                defaultFetchDirection = s.getFetchDirection();
+                break;
+            case MAX_FIELD_SIZE:
+                defaultMaxFieldSize = s.getMaxFieldSize();
+                break;
+            case POOLABLE:
+                defaultPoolable = s.isPoolable();
+                break;
+            default:
+                //Escape processing is on by default, the cursor name and
+                //closing on completion can not be restored
+                break;
+        }
+        dirty |= property;
+    }
+
+    /**
+     * Restores the statement properties changed by the caller, before the
+     * database statement is handed out again.
+     *
+     * @return boolean False if a property could not be restored, or the
+     * statement must not be handed out again.
+     */
+    boolean resetStatement() {
+        if ((dirty & (CURSOR_NAME | CLOSE_ON_COMPLETION)) != 0) {
+            return false;
+        }
+        try {
+            if ((dirty & POOLABLE) != 0) {
+                if (!s.isPoolable()) {
+                    return false;
+                }
+                s.setPoolable(defaultPoolable);
+            }
+            if ((dirty & MAX_ROWS) != 0) {
+                s.setMaxRows(defaultMaxRows);
+            }
+            if ((dirty & QUERY_TIMEOUT) != 0) {
+                s.setQueryTimeout(defaultQueryTimeout);
+            }
+            if ((dirty & FETCH_SIZE) != 0) {
+                s.setFetchSize(defaultFetchSize);
+            }
+            if ((dirty & FETCH_DIRECTION) != 0) {
+                s.setFetchDirection(defaultFetchDirection);
+            }
+            if ((dirty & MAX_FIELD_SIZE) != 0) {
+                s.setMaxFieldSize(defaultMaxFieldSize);
+            }
+            if ((dirty & ESCAPE_PROCESSING) != 0) {
+                s.setEscapeProcessing(true);
+            }
+        } catch (SQLException e) {
+            return false;
+        }
+        dirty = 0;
+        return true;
+    }
+
+    /**
+     * Wraps a result set of the database statement.
+     *
+     * @param rs java.sql.ResultSet. The result set, or null.
+     * @return java.sql.ResultSet
+     */
+    ResultSet wrap(ResultSet rs) {
+        return rs == null ? null : new ProxyResultSet(this, rs);
+    }
+
+    /**
+     * Gives up the database statement once this statement is closed.
+     *
+     * @throws SQLException
+     */
+    void release() throws SQLException {
+        s.close();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (!closed) {
+            closed = true;
+            connection.untrack(this);
+            release();
+        }
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed || s.isClosed();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        checkOpen();
+        return connection;
+    }
+
+    @Override
+    public ResultSet executeQuery(String sql) throws SQLException {
+        checkOpen();
+        return wrap(s.executeQuery(sql));
+    }
+
+    @Override
+    public int executeUpdate(String sql) throws SQLException {
+        checkOpen();
+        return s.executeUpdate(sql);
+    }
+
+    @Override
+    public int getMaxFieldSize() throws SQLException {
+        checkOpen();
+        return s.getMaxFieldSize();
+    }
+
+    @Override
+    public void setMaxFieldSize(int max) throws SQLException {
+        checkOpen();
+        change(MAX_FIELD_SIZE);
+        s.setMaxFieldSize(max);
+    }
+
+    @Override
+    public int getMaxRows() throws SQLException {
+        checkOpen();
+        return s.getMaxRows();
+    }
+
+    @Override
+    public void setMaxRows(int max) throws SQLException {
+        checkOpen();
+        change(MAX_ROWS);
+        s.setMaxRows(max);
+    }
+
+    @Override
+    public void setEscapeProcessing(boolean enable) throws SQLException {
+        checkOpen();
+        change(ESCAPE_PROCESSING);
+        s.setEscapeProcessing(enable);
+    }
+
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        checkOpen();
+        return s.getQueryTimeout();
+    }
+
+    @Override
+    public void setQueryTimeout(int seconds) throws SQLException {
+        checkOpen();
+        change(QUERY_TIMEOUT);
+        s.setQueryTimeout(seconds);
+    }
+
+    @Override
+    public void cancel() throws SQLException {
+        checkOpen();
+        s.cancel();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        checkOpen();
+        return s.getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        checkOpen();
+        s.clearWarnings();
+    }
+
+    @Override
+    public void setCursorName(String name) throws SQLException {
+        checkOpen();
+        change(CURSOR_NAME);
+        s.setCursorName(name);
+    }
+
+    @Override
+    public boolean execute(String sql) throws SQLException {
+        checkOpen();
+        return s.execute(sql);
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        checkOpen();
+        return wrap(s.getResultSet());
+    }
+
+    @Override
+    public int getUpdateCount() throws SQLException {
+        checkOpen();
+        return s.getUpdateCount();
+    }
+
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        checkOpen();
+        return s.getMoreResults();
+    }
+
+    @Override
+    public void setFetchDirection(int direction) throws SQLException {
+        checkOpen();
+        change(FETCH_DIRECTION);
+        s.setFetchDirection(direction);
+    }
+
+    @Override
+    public int getFetchDirection() throws SQLException {
+        checkOpen();
+        return s.getFetchDirection();
+    }
+
+    @Override
+    public void setFetchSize(int rows) throws SQLException {
+        checkOpen();
+        change(FETCH_SIZE);
+        s.setFetchSize(rows);
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        checkOpen();
+        return s.getFetchSize();
+    }
+
+    @Override
+    public int getResultSetConcurrency() throws SQLException {
+        checkOpen();
+        return s.getResultSetConcurrency();
+    }
+
+    @Override
+    public int getResultSetType() throws SQLException {
+        checkOpen();
+        return s.getResultSetType();
+    }
+
+    @Override
+    public void addBatch(String sql) throws SQLException {
+        checkOpen();
+        s.addBatch(sql);
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        checkOpen();
+        s.clearBatch();
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        checkOpen();
+        return s.executeBatch();
+    }
+
+    @Override
+    public boolean getMoreResults(int current) throws SQLException {
+        checkOpen();
+        return s.getMoreResults(current);
+    }
+
+    @Override
+    public ResultSet getGeneratedKeys() throws SQLException {
+        checkOpen();
+        return wrap(s.getGeneratedKeys());
+    }
+
+    @Override
+    public int executeUpdate(String sql, int autoGeneratedKeys)
+            throws SQLException {
+        checkOpen();
+        return s.executeUpdate(sql, autoGeneratedKeys);
+    }
+
+    @Override
+    public int executeUpdate(String sql, int[] columnIndexes)
+            throws SQLException {
+        checkOpen();
+        return s.executeUpdate(sql, columnIndexes);
+    }
+
+    @Override
+    public int executeUpdate(String sql, String[] columnNames)
+            throws SQLException {
+        checkOpen();
+        return s.executeUpdate(sql, columnNames);
+    }
+
+    @Override
+    public boolean execute(String sql, int autoGeneratedKeys)
+            throws SQLException {
+        checkOpen();
+        return s.execute(sql, autoGeneratedKeys);
+    }
+
+    @Override
+    public boolean execute(String sql, int[] columnIndexes)
+            throws SQLException {
+        checkOpen();
+        return s.execute(sql, columnIndexes);
+    }
+
+    @Override
+    public boolean execute(String sql, String[] columnNames)
+            throws SQLException {
+        checkOpen();
+        return s.execute(sql, columnNames);
+    }
+
+    @Override
+    public int getResultSetHoldability() throws SQLException {
+        checkOpen();
+        return s.getResultSetHoldability();
+    }
+
+    @Override
+    public void setPoolable(boolean poolable) throws SQLException {
+        checkOpen();
+        change(POOLABLE);
+        s.setPoolable(poolable);
+    }
+
+    @Override
+    public boolean isPoolable() throws SQLException {
+        checkOpen();
+        return s.isPoolable();
+    }
+
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        checkOpen();
+        change(CLOSE_ON_COMPLETION);
+        s.closeOnCompletion();
+    }
+
+    @Override
+    public boolean isCloseOnCompletion() throws SQLException {
+        checkOpen();
+        return s.isCloseOnCompletion();
+    }
+
+    @Override
+    public long getLargeUpdateCount() throws SQLException {
+        checkOpen();
+        return s.getLargeUpdateCount();
+    }
+
+    @Override
+    public void setLargeMaxRows(long max) throws SQLException {
+        checkOpen();
+        change(MAX_ROWS);
+        s.setLargeMaxRows(max);
+    }
+
+    @Override
+    public long getLargeMaxRows() throws SQLException {
+        checkOpen();
+        return s.getLargeMaxRows();
+    }
+
+    @Override
+    public long[] executeLargeBatch() throws SQLException {
+        checkOpen();
+        return s.executeLargeBatch();
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql) throws SQLException {
+        checkOpen();
+        return s.executeLargeUpdate(sql);
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, int autoGeneratedKeys)
+            throws SQLException {
+        checkOpen();
+        return s.executeLargeUpdate(sql, autoGeneratedKeys);
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, int[] columnIndexes)
+            throws SQLException {
+        checkOpen();
+        return s.executeLargeUpdate(sql, columnIndexes);
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, String[] columnNames)
+            throws SQLException {
+        checkOpen();
+        return s.executeLargeUpdate(sql, columnNames);
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        checkOpen();
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return s.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        checkOpen();
+        return iface.isInstance(this) || s.isWrapperFor(iface);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + s + "]";
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.database;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The prepared statements of a database connection which were closed by the
+ * caller, kept to be handed out again when the same SQL is prepared. The
+ * least recently used statement is closed when the cache is full.
+ *
+ * A cache belongs to one connection and is only used by the thread holding
+ * that connection, so it is not synchronized. A cached statement is taken out
+ * of the cache while in use, two callers never share one.
+ */
+final class StatementCache {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(StatementCache.class);
+    //Access ordered, the eldest entry is the least recently used
+    private final LinkedHashMap<Key, PreparedStatement> statements =
+            new LinkedHashMap<Key, PreparedStatement>(16, 0.75f, true);
+    private final Counters counters;
+
+    /**
+     * Constructor
+     *
+     * @param counters Counters. Shared by the caches of a pool.
+     */
+    StatementCache(Counters counters) {
+        this.counters = counters;
+    }
+
+    /**
+     * Takes a cached statement out of the cache.
+     *
+     * @param key Key
+     * @return java.sql.PreparedStatement The statement, or null if none is
+     * cached for the key.
+     */
+    PreparedStatement take(Key key) {
+        PreparedStatement ps = statements.remove(key);
+        if (ps != null) {
+            counters.hits.increment();
+        } else {
+            counters.misses.increment();
+        }
+        return ps;
+    }
+
+    /**
+     * Puts a statement closed by the caller into the cache, evicting the least
+     * recently used statements beyond the given size. The statement
+     * properties changed by the caller have been restored by its wrapper,
+     * its parameters, pending batch and warnings are cleared and its result
+     * set is closed here.
+     *
+     * @param key Key
+     * @param ps java.sql.PreparedStatement
+     * @param maxSize int. The number of statements to keep.
+     * @return boolean False if the statement was not cached and must be
+     * closed by the caller.
+     */
+    boolean put(Key key, PreparedStatement ps, int maxSize) {
+        if (maxSize <= 0 || statements.containsKey(key)) {
+            return false;
+        }
+        try {
+            ps.clearParameters();
+            //A batch left pending would run with the next caller's batch
+            ps.clearBatch();
+            ps.clearWarnings();
+            //The caller may have left a result set open
+            ResultSet rs = ps.getResultSet();
+            if (rs != null) {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            return false;
+        }
+        statements.put(key, ps);
+        Iterator<PreparedStatement> i = statements.values().iterator();
+        while (statements.size() > maxSize) {
+            PreparedStatement eldest = i.next();
+            i.remove();
+            counters.evictions.increment();
+            close(eldest);
+        }
+        return true;
+    }
+
+    /**
+     * Closes all cached statements, e.g. when the connection was replaced.
+     */
+    void clear() {
+        for (PreparedStatement ps : statements.values()) {
+            close(ps);
+        }
+        statements.clear();
+    }
+
+    int size() {
+        return statements.size();
+    }
+
+    private void close(PreparedStatement ps) {
+        try {
+            ps.close();
+        } catch (SQLException e) {
+            logger.warn("Failed to close cached statement " + ps, e);
+        }
+    }
+
+    /**
+     * Identifies a prepared statement by its SQL and the options it was
+     * prepared with.
+     */
+    static final class Key {
+
+        private final String sql;
+        private final int resultSetType;
+        private final int resultSetConcurrency;
+        private final int resultSetHoldability;
+        private final int autoGeneratedKeys;
+        private final int hash;
+
+        /**
+         * Constructor
+         *
+         * @param sql String
+         * @param resultSetType int
+         * @param resultSetConcurrency int
+         * @param resultSetHoldability int. -1 for the default holdability.
+         * @param autoGeneratedKeys int
+         */
+        Key(String sql, int resultSetType, int resultSetConcurrency,
+                int resultSetHoldability, int autoGeneratedKeys) {
+            this.sql = sql;
+            this.resultSetType = resultSetType;
+            this.resultSetConcurrency = resultSetConcurrency;
+            this.resultSetHoldability = resultSetHoldability;
+            this.autoGeneratedKeys = autoGeneratedKeys;
+            int h = sql.hashCode();
+            h = 31 * h + resultSetType;
+            h = 31 * h + resultSetConcurrency;
+            h = 31 * h + resultSetHoldability;
+            h = 31 * h + autoGeneratedKeys;
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash && resultSetType == k.resultSetType
+                    && resultSetConcurrency == k.resultSetConcurrency
+                    && resultSetHoldability == k.resultSetHoldability
+                    && autoGeneratedKeys == k.autoGeneratedKeys
+                    && sql.equals(k.sql);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Hit, miss and eviction counts of the caches of a pool.
+     */
+    static final class Counters {
+
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder evictions = new LongAdder();
+    }
+}
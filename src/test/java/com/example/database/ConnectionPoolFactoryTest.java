@@ -1,11 +1,25 @@
 package com.example.database;
 
 import com.example.database.ConnectionPoolFactory.Errors;
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
 import junit.framework.Assert;
 import org.apache.log4j.NDC;
 import org.junit.BeforeClass;
@@ -23,6 +37,13 @@ import org.springframework.context.support.ClassPathXmlApplicationContext;
  */
 public class ConnectionPoolFactoryTest {
 
+    private static final String DRIVER = "org.hsqldb.jdbcDriver";
+    private static final String URL = "jdbc:hsqldb:mem:connectionpool";
+    private static final String USER = "sa";
+    private static final String PASSWORD = "";
+    private static final Logger logger =
+            LoggerFactory.getLogger(ConnectionPoolFactoryTest.class);
+
     private static ApplicationContext ctx;
     private static ConnectionPool cp = null;
     private static ConnectionPoolFactory cpf = null;
@@ -106,6 +127,799 @@ public class ConnectionPoolFactoryTest {
         Connection e = cp_ml.getConnection();
     }
 
+    @org.junit.Test
+    public void testConnectionTimeout() throws SQLException {
+        ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL, USER,
+                PASSWORD, 1, true);
+        try {
+            f.setConnectionTimeout(100);
+            Connection c = f.getConnection();
+            long start = System.currentTimeMillis();
+            try {
+                f.getConnection();
+                Assert.fail("Expected a timeout");
+            } catch (SQLException e) {
+                Assert.assertEquals(Errors.CONNECTION_TIMEOUT, e.getMessage());
+            }
+            Assert.assertTrue(System.currentTimeMillis() - start >= 100);
+            f.releaseConnection(c);
+            assertFreeUse(f, 1, 0);
+        } finally {
+            f.shutdown();
+        }
+    }
+
+    @org.junit.Test
+    public void testConnectionHandOff() throws Exception {
+        final ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL,
+                USER, PASSWORD, 1, true);
+        try {
+            final Connection c = f.getConnection();
+            final Connection[] handed = new Connection[1];
+            Thread t = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        handed[0] = f.getConnection(10, TimeUnit.SECONDS);
+                    } catch (SQLException e) {
+                        logger.error(e.getMessage(), e);
+                    }
+                }
+            });
+            t.start();
+            Thread.sleep(100);
+            f.releaseConnection(c);
+            t.join(10000);
+            Assert.assertSame(c, handed[0]);
+            Assert.assertFalse(handed[0].isClosed());
+            assertFreeUse(f, 0, 1);
+            f.releaseAll();
+        } finally {
+            f.shutdown();
+        }
+    }
+
+    @org.junit.Test
+    public void testAcquireAsync() throws Exception {
+        ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL, USER,
+                PASSWORD, 1, true);
+        try {
+            Connection c = f.acquireAsync().toCompletableFuture()
+                    .get(10, TimeUnit.SECONDS);
+            assertFreeUse(f, 0, 1);
+            CompletableFuture<Connection> pending =
+                    f.acquireAsync(10, TimeUnit.SECONDS).toCompletableFuture();
+            Assert.assertFalse(pending.isDone());
+            f.releaseConnection(c);
+            Assert.assertSame(c, pending.get(10, TimeUnit.SECONDS));
+            CompletableFuture<Connection> timedOut = f.acquireAsync(100,
+                    TimeUnit.MILLISECONDS).toCompletableFuture();
+            try {
+                timedOut.get(10, TimeUnit.SECONDS);
+                Assert.fail("Expected a timeout");
+            } catch (ExecutionException e) {
+                Assert.assertEquals(Errors.CONNECTION_TIMEOUT,
+                        e.getCause().getMessage());
+            }
+            f.releaseAll();
+            assertFreeUse(f, 1, 0);
+        } finally {
+            f.shutdown();
+        }
+    }
+
+    @org.junit.Test
+    public void testShutdownFailsAsyncRequests() throws Exception {
+        StubDriver.Database db = StubDriver.database(
+                "testShutdownFailsAsyncRequests");
+        db.setConnectLatency(StubDriver.Latency.fixed(200,
+                TimeUnit.MILLISECONDS));
+        ConnectionPoolFactory f = new ConnectionPoolFactory(
+                StubDriver.class.getName(),
+                StubDriver.URL_PREFIX + "testShutdownFailsAsyncRequests", USER,
+                PASSWORD, 4, true);
+        f.setMaxConcurrentCreations(1);
+        List<CompletableFuture<Connection>> pending =
+                new ArrayList<CompletableFuture<Connection>>();
+        for (int i = 0; i < 6; i++) {
+            pending.add(f.acquireAsync(10, TimeUnit.SECONDS)
+                    .toCompletableFuture());
+        }
+        f.shutdown();
+        //Queued creations and waiting requests fail instead of hanging
+        for (CompletableFuture<Connection> c : pending) {
+            try {
+                f.releaseConnection(c.get(5, TimeUnit.SECONDS));
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof SQLException);
+            }
+        }
+        assertFreeUse(f, 0, 0);
+    }
+
+    @org.junit.Test
+    public void testConcurrentCreations() throws Exception {
+        StubDriver.Database db = StubDriver.database("testConcurrentCreations");
+        db.setConnectLatency(StubDriver.Latency.fixed(20,
+                TimeUnit.MILLISECONDS));
+        final ConnectionPoolFactory f = new ConnectionPoolFactory(
+                StubDriver.class.getName(),
+                StubDriver.URL_PREFIX + "testConcurrentCreations", USER,
+                PASSWORD, 8, true);
+        try {
+            f.setMaxConcurrentCreations(2);
+            Assert.assertEquals(2, f.getMaxConcurrentCreations());
+            Thread[] threads = new Thread[8];
+            final AtomicInteger failures = new AtomicInteger();
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            f.getConnection();
+                        } catch (SQLException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            Assert.assertEquals(0, failures.get());
+            assertFreeUse(f, 0, 8);
+            Assert.assertEquals(8, db.getConnectCount());
+            Assert.assertTrue(db.getMaxConcurrentConnects() <= 2);
+            f.releaseAll();
+        } finally {
+            f.shutdown();
+        }
+    }
+
+    @org.junit.Test
+    public void testWarmUp() throws Exception {
+        ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL, USER,
+                PASSWORD, 10, false, 2);
+        try {
+            Assert.assertTrue(f.free() >= 2);
+            long end = System.currentTimeMillis() + 10000;
+            while (f.getWarmupTime() < 0 && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(f.getWarmupTime() >= 0);
+            assertFreeUse(f, 10, 0);
+            Assert.assertEquals(-1, cpf_l.getWarmupTime());
+        } finally {
+            f.shutdown();
+        }
+    }
+
+    @org.junit.Test
+    public void testMinMaxIdle() throws Exception {
+        ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL, USER,
+                PASSWORD, 10, true);
+        f.setHousekeepingPeriod(50);
+        f.setMinIdle(3);
+        waitForFree(f, 3);
+        Connection c = f.getConnection();
+        Connection d = f.getConnection();
+        waitForFree(f, 3);
+        assertFreeUse(f, 3, 2);
+        f.releaseConnection(c);
+        f.releaseConnection(d);
+        f.setMinIdle(0);
+        f.setMaxIdle(1);
+        waitForFree(f, 1);
+        assertFreeUse(f, 1, 0);
+        f.shutdown();
+        assertFreeUse(f, 0, 0);
+    }
+
+    @org.junit.Test
+    public void testMaxLifetime() throws Exception {
+        ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL, USER,
+                PASSWORD, 1, false);
+        Connection c = f.getConnection();
+        f.setHousekeepingPeriod(20);
+        f.setMaxLifetime(100);
+        Thread.sleep(200);
+        assertFreeUse(f, 0, 1);
+        f.releaseConnection(c);
+        f.setMaxLifetime(0);
+        waitForFree(f, 1);
+        Connection d = f.getConnection();
+        Assert.assertNotSame(c, d);
+        f.shutdown();
+    }
+
+    @org.junit.Test
+    public void testIdleTimeout() throws Exception {
+        ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL, USER,
+                PASSWORD, 4, false);
+        f.setMinIdle(1);
+        f.setIdleTimeout(50);
+        f.setHousekeepingPeriod(20);
+        waitForFree(f, 1);
+        assertFreeUse(f, 1, 0);
+        f.shutdown();
+    }
+
+    @org.junit.Test
+    public void testValidation() throws SQLException {
+        ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL, USER,
+                PASSWORD, 2, false);
+        f.setTestQuery("SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS");
+        f.setValidationInterval(0);
+        Connection c = f.getConnection();
+        testStatements(c);
+        f.releaseConnection(c);
+        Assert.assertTrue(f.getValidationCount() > 0);
+        Assert.assertEquals(0, f.getValidationFailureCount());
+        f.shutdown();
+    }
+
+    @org.junit.Test
+    public void testValidationFailure() throws Exception {
+        ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL, USER,
+                PASSWORD, 1, false);
+        f.setValidationInterval(0);
+        Connection c = f.getConnection();
+        final Connection db = ((ProxyConnection) c).c;
+        f.releaseConnection(c);
+        f.setValidator(new ConnectionValidator() {
+
+            @Override
+            public boolean isValid(Connection c, int timeout) {
+                return c != db;
+            }
+        });
+        //The broken connection is replaced by a new one in its slot, without
+        //waiting
+        c = f.getConnection(0, TimeUnit.SECONDS);
+        Assert.assertNotSame(db, ((ProxyConnection) c).c);
+        Assert.assertEquals(1, f.getValidationFailureCount());
+        f.releaseConnection(c);
+        f.shutdown();
+    }
+
+    @org.junit.Test
+    public void testStatementsClosedOnRelease() throws SQLException {
+        Connection c = cp.getConnection();
+        Statement s = c.createStatement();
+        PreparedStatement ps = c.prepareStatement(
+                "SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS");
+        ResultSet rs = ps.executeQuery();
+        Statement closed = c.createStatement();
+        closed.close();
+        Assert.assertSame(c, ps.getConnection());
+        Assert.assertSame(ps, rs.getStatement());
+        Assert.assertSame(c, s.executeQuery(
+                "SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS")
+                .getStatement().getConnection());
+        Assert.assertSame(c, c.getMetaData().getConnection());
+        cp.releaseConnection(c);
+        Assert.assertTrue(s.isClosed());
+        Assert.assertTrue(ps.isClosed());
+        Assert.assertTrue(closed.isClosed());
+    }
+
+    @org.junit.Test
+    public void testStatementCache() throws SQLException {
+        ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL, USER,
+                PASSWORD, 1, false);
+        f.setStatementCacheSize(1);
+        String sql = "SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS";
+        Connection c = f.getConnection();
+        PreparedStatement ps = c.prepareStatement(sql);
+        ps.setMaxRows(1);
+        ps.setQueryTimeout(5);
+        ps.executeQuery();
+        ps.close();
+        Assert.assertTrue(ps.isClosed());
+        PreparedStatement closed = ps;
+        ps = c.prepareStatement(sql);
+        Assert.assertFalse(ps.isClosed());
+        //The closed wrapper does not reach the cached statement
+        try {
+            closed.executeQuery();
+            Assert.fail();
+        } catch (SQLException e) {
+            Assert.assertEquals(ConnectionPoolFactory.Errors.STATEMENT_CLOSED,
+                    e.getMessage());
+        }
+        Assert.assertEquals(0, ps.getMaxRows());
+        Assert.assertEquals(0, ps.getQueryTimeout());
+        ps.executeQuery();
+        Assert.assertEquals(1, f.getStatementCacheHits());
+        Assert.assertEquals(1, f.getStatementCacheMisses());
+        //The statement left open is cached on release, evicting this one
+        c.prepareStatement(sql + " WHERE 1 = 1").close();
+        f.releaseConnection(c);
+        Assert.assertEquals(1, f.getStatementCacheEvictions());
+        //A batch left pending is not run by the next caller
+        c = f.getConnection();
+        Statement s = c.createStatement();
+        s.execute("CREATE TABLE STATEMENT_CACHE_TEST (ID INT)");
+        String insert = "INSERT INTO STATEMENT_CACHE_TEST VALUES (1)";
+        ps = c.prepareStatement(insert);
+        ps.addBatch();
+        ps.close();
+        ps = c.prepareStatement(insert);
+        Assert.assertEquals(0, ps.executeBatch().length);
+        ps.close();
+        s.execute("DROP TABLE STATEMENT_CACHE_TEST");
+        f.releaseConnection(c);
+        f.shutdown();
+    }
+
+    @org.junit.Test
+    public void testSessionReset() throws SQLException {
+        ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL, USER,
+                PASSWORD, 1, false);
+        Connection c = f.getConnection();
+        c.createStatement().execute("CREATE TABLE reset (id INTEGER)");
+        c.setAutoCommit(false);
+        c.setReadOnly(false);
+        c.createStatement().execute("INSERT INTO reset VALUES (1)");
+        //Released without commit
+        f.releaseConnection(c);
+        c = f.getConnection();
+        Assert.assertTrue(c.getAutoCommit());
+        Assert.assertFalse(c.isReadOnly());
+        ResultSet rs = c.createStatement().executeQuery(
+                "SELECT COUNT(*) FROM reset");
+        rs.next();
+        Assert.assertEquals(0, rs.getInt(1));
+        c.createStatement().execute("DROP TABLE reset");
+        f.releaseConnection(c);
+        f.shutdown();
+    }
+
+    @org.junit.Test
+    public void testDataSource() throws SQLException {
+        ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL, USER,
+                PASSWORD, 2, true);
+        DataSource ds = f;
+        Connection c = ds.getConnection(USER, PASSWORD);
+        assertFreeUse(f, 0, 1);
+        c.close();
+        //Closing again has no effect
+        c.close();
+        assertFreeUse(f, 1, 0);
+        ds.setLoginTimeout(0);
+        Assert.assertEquals(0, ds.getLoginTimeout());
+        ds.setLoginTimeout(2);
+        Assert.assertEquals(2000, f.getConnectionTimeout());
+        Assert.assertEquals(2, ds.getLoginTimeout());
+        Assert.assertSame(f, ds.unwrap(ConnectionPool.class));
+        Assert.assertFalse(ds.isWrapperFor(String.class));
+        try {
+            ds.getConnection(USER, "wrong");
+            Assert.fail();
+        } catch (SQLException e) {
+            //No sub-pool is created for these credentials
+        }
+        //The sub-pools share the connection limit of the pool
+        c = f.getConnection();
+        c.createStatement().execute("CREATE USER other PASSWORD 'other'");
+        Connection other = ds.getConnection("OTHER", "other");
+        try {
+            f.getConnection(0, TimeUnit.MILLISECONDS);
+            Assert.fail();
+        } catch (SQLException e) {
+            Assert.assertEquals(ConnectionPoolFactory.Errors
+                    .MAX_CONNECTION_REACHED, e.getMessage());
+        }
+        other.close();
+        //The idle connection of the sub-pool gives up its slot
+        f.releaseConnection(f.getConnection(0, TimeUnit.MILLISECONDS));
+        f.releaseConnection(c);
+        f.shutdown();
+    }
+
+    @org.junit.Test
+    public void testLeakDetection() throws Exception {
+        ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL, USER,
+                PASSWORD, 1, false);
+        f.setLeakDetectionThreshold(50);
+        f.setAbandonedTimeout(200);
+        Connection c = f.getConnection();
+        Thread.sleep(120);
+        Assert.assertEquals(1, f.getLeakCount());
+        //Taken back and replaced while the caller still holds it
+        Connection d = f.getConnection(5, TimeUnit.SECONDS);
+        Assert.assertTrue(c.isClosed());
+        Assert.assertEquals(1, f.getAbandonedCount());
+        f.releaseConnection(c);
+        f.releaseConnection(d);
+        assertFreeUse(f, 1, 0);
+        f.shutdown();
+    }
+
+    @org.junit.Test
+    public void testMetrics() throws Exception {
+        ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL, USER,
+                PASSWORD, 1, true);
+        Connection c = f.getConnection();
+        Assert.assertEquals(1, f.getCreationTimeHistogram().getCount());
+        Assert.assertEquals(1, f.getActiveConnections());
+        Assert.assertEquals(0, f.getIdleConnections());
+        Thread.sleep(10);
+        f.releaseConnection(c);
+        Assert.assertTrue(f.getHoldTimeHistogram().getPercentile(50,
+                TimeUnit.MILLISECONDS) >= 10);
+        c = f.getConnection();
+        Assert.assertEquals(2, f.getAcquireTimeHistogram().getCount());
+        try {
+            f.getConnection(10, TimeUnit.MILLISECONDS);
+            Assert.fail();
+        } catch (SQLException e) {
+            Assert.assertEquals(1, f.getTimeoutCount());
+        }
+        Assert.assertEquals(0, f.getPendingRequests());
+        f.releaseConnection(c);
+        f.shutdown();
+    }
+
+    @org.junit.Test
+    public void testMBean() throws Exception {
+        ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL, USER,
+                PASSWORD, 2, false);
+        f.setPoolName("testMBean");
+        f.setRegisterMBean(true);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(
+                "com.example.database:type=ConnectionPool,name=\"testMBean\"");
+        PoolMXBean mbean = JMX.newMXBeanProxy(server, name, PoolMXBean.class);
+        Connection c = f.getConnection();
+        Assert.assertEquals(1, mbean.getActiveConnections());
+        Assert.assertEquals(1, mbean.getIdleConnections());
+        Assert.assertEquals(2, mbean.getTotalConnections());
+        //Suspended, requests time out
+        mbean.suspendPool();
+        try {
+            f.getConnection(10, TimeUnit.MILLISECONDS);
+            Assert.fail();
+        } catch (SQLException e) {
+            Assert.assertEquals(Errors.POOL_SUSPENDED, e.getMessage());
+        }
+        CompletableFuture<Connection> future = f.acquireAsync(10,
+                TimeUnit.SECONDS).toCompletableFuture();
+        Thread.sleep(10);
+        Assert.assertFalse(future.isDone());
+        mbean.resumePool();
+        f.releaseConnection(future.get());
+        //A request queued before the pool is suspended waits for resume
+        Connection d = f.getConnection();
+        CompletableFuture<Connection> queued = f.acquireAsync(10,
+                TimeUnit.SECONDS).toCompletableFuture();
+        mbean.suspendPool();
+        f.releaseConnection(d);
+        Thread.sleep(10);
+        Assert.assertFalse(queued.isDone());
+        mbean.resumePool();
+        f.releaseConnection(queued.get());
+        //Idle connections are replaced
+        Connection db = ((ProxyConnection) c).c;
+        f.releaseConnection(c);
+        mbean.softEvictConnections();
+        Thread.sleep(100);
+        Assert.assertTrue(db.isClosed());
+        assertFreeUse(f, 2, 0);
+        //Shrinks to the new maximum
+        mbean.setMaxConnections(1);
+        Assert.assertEquals(1, mbean.getTotalConnections());
+        f.shutdown();
+        Assert.assertFalse(server.isRegistered(name));
+    }
+
+    @org.junit.Test
+    public void testDatabaseRestart() throws Exception {
+        StubDriver.Database db = StubDriver.database("testDatabaseRestart");
+        ConnectionPoolFactory f = new ConnectionPoolFactory(
+                StubDriver.class.getName(),
+                StubDriver.URL_PREFIX + "testDatabaseRestart", USER, PASSWORD,
+                2, false);
+        f.setValidationInterval(0);
+        Assert.assertEquals(2, db.getOpenConnections());
+        //Broken connections fail validation and are replaced in their slots,
+        //the caller does not wait for a background replacement
+        db.restart();
+        Connection c = f.getConnection(0, TimeUnit.MILLISECONDS);
+        Connection d = f.getConnection(0, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(c.isValid(1));
+        Assert.assertTrue(d.isValid(1));
+        Assert.assertEquals(2, f.getValidationFailureCount());
+        f.releaseConnection(c);
+        f.releaseConnection(d);
+        f.shutdown();
+        //Retired connections are closed in the background
+        Thread.sleep(100);
+        Assert.assertEquals(0, db.getOpenConnections());
+    }
+
+    @org.junit.Test
+    public void testValidationOnHandOff() throws Exception {
+        StubDriver.Database db = StubDriver.database("testValidationOnHandOff");
+        ConnectionPoolFactory f = new ConnectionPoolFactory(
+                StubDriver.class.getName(),
+                StubDriver.URL_PREFIX + "testValidationOnHandOff", USER,
+                PASSWORD, 1, false);
+        f.setValidationInterval(0);
+        Connection c = f.getConnection();
+        CompletableFuture<Connection> future = f.acquireAsync(10,
+                TimeUnit.SECONDS).toCompletableFuture();
+        //The connection handed over to the waiter is broken and replaced,
+        //the releasing thread does not validate it
+        db.restart();
+        db.setQueryLatency(StubDriver.Latency.fixed(200,
+                TimeUnit.MILLISECONDS));
+        long start = System.nanoTime();
+        f.releaseConnection(c);
+        Assert.assertTrue(System.nanoTime() - start
+                < TimeUnit.MILLISECONDS.toNanos(200));
+        c = future.get();
+        Assert.assertTrue(c.isValid(1));
+        Assert.assertEquals(1, f.getValidationFailureCount());
+        f.releaseConnection(c);
+        f.shutdown();
+    }
+
+    @org.junit.Test
+    public void testDatabaseDown() throws Exception {
+        StubDriver.Database db = StubDriver.database("testDatabaseDown");
+        db.setConnectLatency(StubDriver.Latency.fixed(5,
+                TimeUnit.MILLISECONDS));
+        ConnectionPoolFactory f = new ConnectionPoolFactory(
+                StubDriver.class.getName(),
+                StubDriver.URL_PREFIX + "testDatabaseDown", USER, PASSWORD, 2,
+                true);
+        db.setDown(true);
+        try {
+            f.getConnection();
+            Assert.fail();
+        } catch (SQLException e) {
+            Assert.assertEquals(Errors.FAIL_CONNECTION, e.getMessage());
+        }
+        Assert.assertEquals(0, f.getTotalConnections());
+        db.setDown(false);
+        Connection c = f.getConnection();
+        Assert.assertTrue(f.getCreationTimeHistogram().getMax(
+                TimeUnit.MILLISECONDS) >= 5);
+        f.releaseConnection(c);
+        f.shutdown();
+    }
+
+    @org.junit.Test
+    public void testCircuitBreaker() throws Exception {
+        StubDriver.Database db = StubDriver.database("testCircuitBreaker");
+        ConnectionPoolFactory f = new ConnectionPoolFactory(
+                StubDriver.class.getName(),
+                StubDriver.URL_PREFIX + "testCircuitBreaker", USER, PASSWORD,
+                2, true);
+        f.setConnectFailureThreshold(2);
+        f.setConnectBackoff(50);
+        db.setDown(true);
+        for (int i = 0; i < 2; i++) {
+            assertConnectFails(f, Errors.FAIL_CONNECTION);
+        }
+        Assert.assertEquals("OPEN", f.getCircuitState());
+        //Fails fast without connecting
+        long connects = db.getConnectCount();
+        assertConnectFails(f, Errors.CONNECTS_SUSPENDED);
+        Assert.assertEquals(connects, db.getConnectCount());
+        Assert.assertEquals(1, f.getRejectedConnectCount());
+        //A single probe after the backoff
+        db.setDown(false);
+        Thread.sleep(60);
+        f.releaseConnection(f.getConnection());
+        Assert.assertEquals("CLOSED", f.getCircuitState());
+        Assert.assertEquals(connects + 1, db.getConnectCount());
+        f.shutdown();
+    }
+
+    private void assertConnectFails(ConnectionPoolFactory f, String message) {
+        try {
+            f.getConnection();
+            Assert.fail();
+        } catch (SQLException e) {
+            Assert.assertEquals(message, e.getMessage());
+        }
+    }
+
+    @org.junit.Test
+    public void testAdaptiveSizing() throws Exception {
+        ConnectionPoolFactory f = new ConnectionPoolFactory(
+                StubDriver.class.getName(),
+                StubDriver.URL_PREFIX + "testAdaptiveSizing", USER, PASSWORD,
+                10, true);
+        f.setMinConnections(2);
+        f.setAdaptiveSizingPeriod(20);
+        f.setAdaptiveSizing(true);
+        //Shrinks to the minimum while idle
+        Thread.sleep(300);
+        Assert.assertEquals(2, f.getConnectionLimit());
+        //Grows while callers wait
+        Connection c1 = f.getConnection();
+        Connection c2 = f.getConnection();
+        CompletableFuture<Connection> future = f.acquireAsync(10,
+                TimeUnit.SECONDS).toCompletableFuture();
+        Connection c3 = future.get();
+        Assert.assertTrue(f.getConnectionLimit() > 2);
+        f.releaseConnection(c1);
+        f.releaseConnection(c2);
+        f.releaseConnection(c3);
+        f.setAdaptiveSizing(false);
+        Assert.assertEquals(10, f.getConnectionLimit());
+        f.shutdown();
+    }
+
+    @org.junit.Test
+    public void testStripes() throws Exception {
+        final ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL, USER,
+                PASSWORD, 4, false);
+        Assert.assertEquals(1, f.getStripes());
+        f.setStripes(3);
+        Assert.assertEquals(4, f.getStripes());
+        //Return the connections from different threads, to different stripes
+        List<Connection> cs = new ArrayList<Connection>();
+        for (int i = 0; i < 4; i++) {
+            cs.add(f.getConnection());
+        }
+        for (final Connection c : cs) {
+            Thread t = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        f.releaseConnection(c);
+                    } catch (SQLException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            t.start();
+            t.join();
+        }
+        assertFreeUse(f, 4, 0);
+        //Fewer stripes still find the connections in all of them
+        f.setStripes(1);
+        Assert.assertEquals(1, f.getStripes());
+        cs.clear();
+        for (int i = 0; i < 4; i++) {
+            cs.add(f.getConnection());
+        }
+        assertFreeUse(f, 0, 4);
+        for (Connection c : cs) {
+            f.releaseConnection(c);
+        }
+        f.shutdown();
+    }
+
+    @org.junit.Test
+    public void testPriority() throws Exception {
+        ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL, USER,
+                PASSWORD, 1, false);
+        f.setPriorityAgingTime(0);
+        Connection c = f.getConnection();
+        CompletableFuture<Connection> low = f.acquireAsync(Priority.LOW, 10,
+                TimeUnit.SECONDS).toCompletableFuture();
+        CompletableFuture<Connection> high = f.acquireAsync(Priority.HIGH, 10,
+                TimeUnit.SECONDS).toCompletableFuture();
+        //Served by priority
+        f.releaseConnection(c);
+        c = high.get(1, TimeUnit.SECONDS);
+        Assert.assertFalse(low.isDone());
+        f.releaseConnection(c);
+        f.releaseConnection(low.get(1, TimeUnit.SECONDS));
+        //Served in order after the aging time
+        f.setPriorityAgingTime(50);
+        c = f.getConnection();
+        low = f.acquireAsync(Priority.LOW, 10, TimeUnit.SECONDS)
+                .toCompletableFuture();
+        Thread.sleep(100);
+        high = f.acquireAsync(Priority.HIGH, 10, TimeUnit.SECONDS)
+                .toCompletableFuture();
+        f.releaseConnection(c);
+        c = low.get(1, TimeUnit.SECONDS);
+        Assert.assertFalse(high.isDone());
+        f.releaseConnection(c);
+        f.releaseConnection(high.get(1, TimeUnit.SECONDS));
+        f.shutdown();
+    }
+
+    @org.junit.Test
+    public void testReservedConnections() throws Exception {
+        ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL, USER,
+                PASSWORD, 3, false);
+        f.setReservedConnections(Priority.HIGH, 1);
+        Connection c1 = f.getConnection(Priority.LOW);
+        Connection c2 = f.getConnection();
+        assertNotAdmitted(f, Priority.LOW);
+        assertNotAdmitted(f, Priority.NORMAL);
+        Connection c3 = f.getConnection(Priority.HIGH);
+        //Admitted once more connections are free than reserved
+        CompletableFuture<Connection> low = f.acquireAsync(Priority.LOW, 10,
+                TimeUnit.SECONDS).toCompletableFuture();
+        f.releaseConnection(c3);
+        Thread.sleep(50);
+        Assert.assertFalse(low.isDone());
+        f.releaseConnection(c2);
+        c2 = low.get(1, TimeUnit.SECONDS);
+        f.releaseConnection(c1);
+        f.releaseConnection(c2);
+        f.setReservedConnections(Priority.HIGH, 0);
+        Assert.assertEquals(0, f.getReservedConnections(Priority.HIGH));
+        f.shutdown();
+    }
+
+    @org.junit.Test
+    public void testQuota() throws Exception {
+        ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL, USER,
+                PASSWORD, 4, false);
+        f.setQuota("batch", 0, 2);
+        f.setQuota("web", 1, 0);
+        Connection b1 = f.getConnection("batch");
+        Connection b2 = f.getConnection("batch");
+        try {
+            f.getConnection("batch", 10, TimeUnit.MILLISECONDS);
+            Assert.fail();
+        } catch (SQLException e) {
+            Assert.assertEquals(Errors.QUOTA_REACHED, e.getMessage());
+        }
+        Assert.assertEquals(2, f.getQuotaInUse("batch"));
+        Assert.assertEquals(1, f.getQuotaRejectedCount("batch"));
+        //The last connection is kept for web
+        Connection c = f.getConnection();
+        assertNotAdmitted(f, Priority.HIGH);
+        Connection w = f.getConnection("web", 0, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(1, f.getQuotaInUse("web"));
+        f.releaseConnection(w);
+        f.releaseConnection(c);
+        f.releaseConnection(b1);
+        f.releaseConnection(b2);
+        Assert.assertEquals(0, f.getQuotaInUse("batch"));
+        Assert.assertEquals(2, f.getQuotaPeak("batch"));
+        //Without a quota, tags get connections like untagged callers
+        f.removeQuota("web");
+        f.removeQuota("batch");
+        Assert.assertTrue(f.getQuotaTags().isEmpty());
+        List<Connection> cs = new ArrayList<Connection>();
+        for (int i = 0; i < 4; i++) {
+            cs.add(f.getConnection("web"));
+        }
+        for (Connection con : cs) {
+            f.releaseConnection(con);
+        }
+        f.shutdown();
+    }
+
+    private void assertNotAdmitted(ConnectionPoolFactory f, Priority priority) {
+        try {
+            f.getConnection(priority, 0, TimeUnit.MILLISECONDS);
+            Assert.fail();
+        } catch (SQLException e) {
+            Assert.assertEquals(Errors.MAX_CONNECTION_REACHED, e.getMessage());
+        }
+    }
+
+    @org.junit.Test
+    public void testShutdown() throws SQLException {
+        ee.expect(SQLException.class);
+        ee.expectMessage(Errors.POOL_SHUTDOWN);
+        ConnectionPoolFactory f = new ConnectionPoolFactory(DRIVER, URL, USER,
+                PASSWORD, 2, false);
+        Connection c = f.getConnection();
+        f.shutdown();
+        assertFreeUse(f, 0, 1);
+        f.releaseConnection(c);
+        assertFreeUse(f, 0, 0);
+        f.getConnection();
+    }
+
     @org.junit.Test
     public void testCloseConnection() throws SQLException {
         int free = cpf.free();
@@ -165,6 +979,78 @@ public class ConnectionPoolFactoryTest {
         assertFreeUse(cpf, 10, 0);
     }
 
+    @org.junit.Test
+    public void testDoubleReleaseConnection() throws SQLException {
+        cpf.releaseAll();
+        int free = cpf.free();
+        Connection c = cp.getConnection();
+        cp.releaseConnection(c);
+        cp.releaseConnection(c);
+        assertFreeUse(cpf, free, 0);
+        Connection d = cp.getConnection();
+        Connection e = cp.getConnection();
+        Assert.assertNotSame(d, e);
+        cpf.releaseAll();
+    }
+
+    @org.junit.Test
+    public void testReclaimReleasedConnection() throws SQLException {
+        Connection c = cp.getConnection();
+        Connection d = cp.getConnection();
+        cp.releaseConnection(c);
+        Connection e = cp.getConnection();
+        Assert.assertSame(c, e);
+        cp.releaseConnection(d);
+        cp.releaseConnection(e);
+        Connection f = cp.getConnection();
+        Assert.assertSame(e, f);
+        cpf.releaseAll();
+    }
+
+    @org.junit.Test
+    public void testConcurrentConnectionsAreExclusive() throws InterruptedException,
+            SQLException {
+        final ConcurrentHashMap<Connection, Thread> owners =
+                new ConcurrentHashMap<Connection, Thread>();
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        cpf.releaseAll();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        try {
+                            Connection c = cp.getConnection();
+                            if (owners.putIfAbsent(c, Thread.currentThread()) != null) {
+                                failures.incrementAndGet();
+                            }
+                            owners.remove(c);
+                            cp.releaseConnection(c);
+                        } catch (SQLException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertEquals(0, failures.get());
+        assertFreeUse(cpf, 10, 0);
+    }
+
+    private void waitForFree(ConnectionPoolFactory cpf, int free)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (cpf.free() != free && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+    }
+
     private void assertFreeUse(ConnectionPoolFactory cpf, int free, int inUse) {
         Assert.assertEquals(cpf.free(), free);
         Assert.assertEquals(cpf.inUse(), inUse);
@@ -0,0 +1,540 @@
+package com.example.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * An in-process JDBC driver for tests and benchmarks. Its connections keep
+ * their session properties in memory, statements run no queries and return
+ * empty results, so measurements show the cost of the pool rather than of a
+ * database.
+ *
+ * The url jdbc:stub:name connects to the simulated database of that name,
+ * see database(String). Each database can be given a connect latency and a
+ * query latency distribution, fail connects, break connections at random or
+ * be restarted, to reproduce a slow or flapping database without a network.
+ * By default a database answers at once and never fails.
+ */
+public class StubDriver implements Driver {
+
+    public static final String URL_PREFIX = "jdbc:stub:";
+    //SQL state of a broken connection
+    public static final String CONNECTION_FAILURE = "08S01";
+    private static final ConcurrentHashMap<String, Database> databases =
+            new ConcurrentHashMap<String, Database>();
+
+    /**
+     * Returns the simulated database of the given name, the one the url
+     * jdbc:stub:name connects to. Settings changed on it apply to new and
+     * open connections alike.
+     *
+     * @param name String
+     * @return Database
+     */
+    public static Database database(String name) {
+        Database db = databases.get(name);
+        if (db == null) {
+            Database created = new Database(name);
+            db = databases.putIfAbsent(name, created);
+            if (db == null) {
+                db = created;
+            }
+        }
+        return db;
+    }
+
+    @Override
+    public Connection connect(String url, Properties info) throws SQLException {
+        if (!acceptsURL(url)) {
+            return null;
+        }
+        return database(url.substring(URL_PREFIX.length())).connect();
+    }
+
+    @Override
+    public boolean acceptsURL(String url) {
+        return url != null && url.startsWith(URL_PREFIX);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    //Sleeps for a round trip, as a blocked socket read would
+    private static void delay(Latency latency) throws SQLException {
+        long nanos = latency.next();
+        if (nanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted", CONNECTION_FAILURE, e);
+            }
+        }
+    }
+
+    /**
+     * A distribution of latencies.
+     */
+    public interface Latency {
+
+        Latency NONE = fixed(0, TimeUnit.NANOSECONDS);
+
+        /**
+         * Returns the next latency.
+         *
+         * @return long Latency in nanoseconds.
+         */
+        long next();
+
+        /**
+         * Returns a constant latency.
+         *
+         * @param latency long
+         * @param unit java.util.concurrent.TimeUnit
+         * @return Latency
+         */
+        static Latency fixed(long latency, TimeUnit unit) {
+            final long nanos = unit.toNanos(latency);
+            return () -> nanos;
+        }
+
+        /**
+         * Returns latencies spread evenly between a minimum and a maximum.
+         *
+         * @param min long
+         * @param max long
+         * @param unit java.util.concurrent.TimeUnit
+         * @return Latency
+         */
+        static Latency uniform(long min, long max, TimeUnit unit) {
+            final long from = unit.toNanos(min);
+            final long to = unit.toNanos(max);
+            return () -> from + (long) (ThreadLocalRandom.current().nextDouble()
+                    * (to - from));
+        }
+
+        /**
+         * Returns exponentially distributed latencies, many short ones and a
+         * long tail, like the response times of a loaded server.
+         *
+         * @param mean long
+         * @param unit java.util.concurrent.TimeUnit
+         * @return Latency
+         */
+        static Latency exponential(long mean, TimeUnit unit) {
+            final double nanos = unit.toNanos(mean);
+            return () -> (long) (-nanos * Math.log(
+                    1 - ThreadLocalRandom.current().nextDouble()));
+        }
+
+        /**
+         * Returns the latencies of a base distribution, replaced by those of
+         * a spike distribution with the given probability, e.g. to simulate
+         * garbage collection pauses or lock waits on the database.
+         *
+         * @param base Latency
+         * @param probability double. Between 0 and 1.
+         * @param spike Latency
+         * @return Latency
+         */
+        static Latency withSpikes(final Latency base, final double probability,
+                final Latency spike) {
+            return () -> ThreadLocalRandom.current().nextDouble() < probability
+                    ? spike.next() : base.next();
+        }
+    }
+
+    /**
+     * A simulated database, shared by the connections opened with its url.
+     */
+    public static final class Database {
+
+        private final String name;
+        private volatile Latency connectLatency = Latency.NONE;
+        private volatile Latency queryLatency = Latency.NONE;
+        private volatile double connectFailureRate = 0;
+        private volatile double connectionDeathRate = 0;
+        private volatile boolean down = false;
+        private final Set<StubConnection> connections =
+                ConcurrentHashMap.<StubConnection>newKeySet();
+        private final LongAdder connects = new LongAdder();
+        private final LongAdder failedConnects = new LongAdder();
+        private final LongAdder queries = new LongAdder();
+        private final LongAdder deaths = new LongAdder();
+        private final AtomicInteger connecting = new AtomicInteger();
+        private final AtomicInteger maxConnecting = new AtomicInteger();
+
+        private Database(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Sets the time taken to open a connection, including failed
+         * attempts.
+         *
+         * @param connectLatency Latency
+         */
+        public void setConnectLatency(Latency connectLatency) {
+            this.connectLatency = connectLatency;
+        }
+
+        /**
+         * Sets the time taken by a round trip: executing a statement,
+         * committing, rolling back or validating a connection.
+         *
+         * @param queryLatency Latency
+         */
+        public void setQueryLatency(Latency queryLatency) {
+            this.queryLatency = queryLatency;
+        }
+
+        /**
+         * Sets the probability of a connect to fail.
+         *
+         * @param connectFailureRate double. Between 0 and 1.
+         */
+        public void setConnectFailureRate(double connectFailureRate) {
+            this.connectFailureRate = connectFailureRate;
+        }
+
+        /**
+         * Sets the probability of a connection to break on a round trip, as
+         * when a socket is dropped by a firewall. A broken connection is not
+         * closed, but fails every round trip and validation.
+         *
+         * @param connectionDeathRate double. Between 0 and 1.
+         */
+        public void setConnectionDeathRate(double connectionDeathRate) {
+            this.connectionDeathRate = connectionDeathRate;
+        }
+
+        /**
+         * Takes the database down or brings it back up. While down, every
+         * connect fails and the open connections break on their next round
+         * trip.
+         *
+         * @param down boolean
+         */
+        public void setDown(boolean down) {
+            this.down = down;
+            if (down) {
+                restart();
+            }
+        }
+
+        /**
+         * Returns whether the database is down.
+         *
+         * @return boolean
+         */
+        public boolean isDown() {
+            return down;
+        }
+
+        /**
+         * Breaks all open connections, as a restart of the database would.
+         */
+        public void restart() {
+            for (StubConnection c : connections) {
+                c.broken = true;
+            }
+        }
+
+        /**
+         * Restores the defaults and clears the counters.
+         */
+        public void reset() {
+            connectLatency = Latency.NONE;
+            queryLatency = Latency.NONE;
+            connectFailureRate = 0;
+            connectionDeathRate = 0;
+            down = false;
+            connects.reset();
+            failedConnects.reset();
+            queries.reset();
+            deaths.reset();
+            maxConnecting.set(0);
+        }
+
+        /**
+         * Returns the number of connections opened and not closed yet.
+         *
+         * @return int
+         */
+        public int getOpenConnections() {
+            return connections.size();
+        }
+
+        /**
+         * Returns the number of connects attempted.
+         *
+         * @return long
+         */
+        public long getConnectCount() {
+            return connects.sum();
+        }
+
+        /**
+         * Returns the number of connects failed.
+         *
+         * @return long
+         */
+        public long getFailedConnectCount() {
+            return failedConnects.sum();
+        }
+
+        /**
+         * Returns the number of round trips made.
+         *
+         * @return long
+         */
+        public long getQueryCount() {
+            return queries.sum();
+        }
+
+        /**
+         * Returns the number of connections broken at random.
+         *
+         * @return long
+         */
+        public long getDeathCount() {
+            return deaths.sum();
+        }
+
+        /**
+         * Returns the highest number of connects in progress at the same
+         * time.
+         *
+         * @return int
+         */
+        public int getMaxConcurrentConnects() {
+            return maxConnecting.get();
+        }
+
+        private Connection connect() throws SQLException {
+            connects.increment();
+            int n = connecting.incrementAndGet();
+            int max;
+            while (n > (max = maxConnecting.get())
+                    && !maxConnecting.compareAndSet(max, n)) {
+                //Retry
+            }
+            try {
+                delay(connectLatency);
+            } finally {
+                connecting.decrementAndGet();
+            }
+            if (down || ThreadLocalRandom.current().nextDouble()
+                    < connectFailureRate) {
+                failedConnects.increment();
+                throw new SQLException("Connection refused by " + name,
+                        CONNECTION_FAILURE);
+            }
+            StubConnection c = new StubConnection(this);
+            connections.add(c);
+            return (Connection) Proxy.newProxyInstance(
+                    StubDriver.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, c);
+        }
+
+        /**
+         * Makes a round trip on a connection, breaking it at random.
+         *
+         * @param c StubConnection
+         * @throws SQLException if the connection is broken.
+         */
+        private void roundTrip(StubConnection c) throws SQLException {
+            queries.increment();
+            delay(queryLatency);
+            if (!c.broken && ThreadLocalRandom.current().nextDouble()
+                    < connectionDeathRate) {
+                deaths.increment();
+                c.broken = true;
+            }
+            c.checkBroken();
+        }
+    }
+
+    /**
+     * The state of a stub connection. Statements, result sets and metadata
+     * share it, so that they fail once the connection is closed or broken.
+     */
+    private static final class StubConnection implements InvocationHandler {
+
+        private final Database db;
+        private volatile boolean closed = false;
+        private volatile boolean broken = false;
+        private boolean autoCommit = true;
+        private boolean readOnly = false;
+        private int transactionIsolation = Connection.TRANSACTION_READ_COMMITTED;
+        private String catalog = null;
+        private String schema = null;
+        private int networkTimeout = 0;
+
+        StubConnection(Database db) {
+            this.db = db;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "StubConnection[" + db.name + "]@"
+                        + Integer.toHexString(System.identityHashCode(proxy));
+            }
+            if (!(proxy instanceof Connection)) {
+                return invokeChild(method);
+            }
+            if (name.equals("close")) {
+                closed = true;
+                db.connections.remove(this);
+                return null;
+            }
+            if (name.equals("isClosed")) {
+                return closed;
+            }
+            checkClosed();
+            if (name.equals("isValid")) {
+                try {
+                    db.roundTrip(this);
+                    return true;
+                } catch (SQLException e) {
+                    return false;
+                }
+            }
+            if (name.equals("commit") || name.equals("rollback")) {
+                db.roundTrip(this);
+            } else if (name.equals("getAutoCommit")) {
+                return autoCommit;
+            } else if (name.equals("isReadOnly")) {
+                return readOnly;
+            } else if (name.equals("getTransactionIsolation")) {
+                return transactionIsolation;
+            } else if (name.equals("getCatalog")) {
+                return catalog;
+            } else if (name.equals("getSchema")) {
+                return schema;
+            } else if (name.equals("getNetworkTimeout")) {
+                return networkTimeout;
+            } else if (name.startsWith("set")) {
+                //Session settings are sent to the database
+                checkBroken();
+                if (name.equals("setAutoCommit")) {
+                    autoCommit = (Boolean) args[0];
+                } else if (name.equals("setReadOnly")) {
+                    readOnly = (Boolean) args[0];
+                } else if (name.equals("setTransactionIsolation")) {
+                    transactionIsolation = (Integer) args[0];
+                } else if (name.equals("setCatalog")) {
+                    catalog = (String) args[0];
+                } else if (name.equals("setSchema")) {
+                    schema = (String) args[0];
+                } else if (name.equals("setNetworkTimeout")) {
+                    networkTimeout = (Integer) args[1];
+                }
+            } else {
+                return defaultValue(method.getReturnType());
+            }
+            return null;
+        }
+
+        //Statements, result sets and other objects of the connection
+        private Object invokeChild(Method method) throws SQLException {
+            String name = method.getName();
+            if (name.equals("isClosed")) {
+                return closed;
+            }
+            if (name.equals("close")) {
+                return null;
+            }
+            checkClosed();
+            if (name.startsWith("execute")) {
+                db.roundTrip(this);
+            } else if (name.equals("getConnection")) {
+                return null;
+            }
+            return defaultValue(method.getReturnType());
+        }
+
+        private void checkClosed() throws SQLException {
+            if (closed) {
+                throw new SQLException("Connection is closed");
+            }
+        }
+
+        private void checkBroken() throws SQLException {
+            if (broken) {
+                throw new SQLException("Connection reset", CONNECTION_FAILURE);
+            }
+        }
+
+        //Returns a stub of a JDBC interface, or a neutral value
+        private Object defaultValue(Class<?> type) {
+            if (type == boolean.class) {
+                return false;
+            } else if (type == int.class) {
+                return 0;
+            } else if (type == long.class) {
+                return 0L;
+            } else if (type == double.class) {
+                return 0d;
+            } else if (type == float.class) {
+                return 0f;
+            } else if (type == short.class) {
+                return (short) 0;
+            } else if (type == byte.class) {
+                return (byte) 0;
+            } else if (type == int[].class) {
+                return new int[0];
+            } else if (type == long[].class) {
+                return new long[0];
+            } else if (type.isInterface()
+                    && type.getName().startsWith("java.sql.")) {
+                return Proxy.newProxyInstance(StubDriver.class.getClassLoader(),
+                        new Class<?>[]{type}, this);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.database;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Assert;
+import org.junit.Assume;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs many virtual threads against a small pool. Virtual threads need Java
+ * 21 or later, the test is skipped on older runtimes. Run with
+ * -Djdk.tracePinnedThreads=full to report any pinned carrier thread.
+ */
+public class VirtualThreadPoolTest {
+
+    private static final int THREADS = 10000;
+    private static final int CONNECTIONS = 20;
+    private static final Logger logger =
+            LoggerFactory.getLogger(VirtualThreadPoolTest.class);
+
+    @org.junit.Test
+    public void testVirtualThreadsSharePool() throws Exception {
+        ExecutorService executor = newVirtualThreadExecutor();
+        Assume.assumeNotNull(executor);
+        final ConnectionPoolFactory cpf = new ConnectionPoolFactory(
+                "org.hsqldb.jdbcDriver", "jdbc:hsqldb:mem:connectionpool", "sa",
+                "", CONNECTIONS, false);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        long start = System.nanoTime();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(new Callable<Boolean>() {
+
+                @Override
+                public Boolean call() throws SQLException, InterruptedException {
+                    Connection c = cpf.getConnection(60, TimeUnit.SECONDS);
+                    try {
+                        //Hold the connection like a short query would
+                        Thread.sleep(1);
+                        return !c.isClosed();
+                    } finally {
+                        cpf.releaseConnection(c);
+                    }
+                }
+            }));
+        }
+        for (Future<Boolean> f : results) {
+            Assert.assertTrue(f.get());
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        logger.info(THREADS + " virtual threads on " + CONNECTIONS
+                + " connections took " + TimeUnit.NANOSECONDS.toMillis(elapsed)
+                + " ms, " + (THREADS * 1000000000L / elapsed) + " acquisitions/s");
+        Assert.assertEquals(CONNECTIONS, cpf.free());
+        Assert.assertEquals(0, cpf.inUse());
+    }
+
+    //Executors.newVirtualThreadPerTaskExecutor() if available
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}